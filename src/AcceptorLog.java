@@ -0,0 +1,155 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The state of a Paxos acceptor on disk: the promises it made and the accept
+ * requests it accepted, so that a restarted acceptor keeps its word. Each is
+ * appended as a record in the format of CommitLog, holding the Prepare or
+ * AcceptRequest as encoded by BinaryCodec.
+ *
+ * Only the promises still in force (see LchServer.AcceptorLearner) and the
+ * values accepted in slots that are not decided yet matter, so once the file holds maxBytes
+ * (lch.wal.acceptorLogBytes) it is rewritten with just those. Recovery
+ * keeps the records up to the first torn or corrupt one.
+ *
+ * Appends are written but not forced to disk; force() does that (see
+ * GroupCommit). This class is not thread-safe, except for force(); the
+ * acceptor uses it on its own thread.
+ */
+class AcceptorLog implements GroupCommit.Syncable {
+    public static final long maxBytes = Long.getLong("lch.wal.acceptorLogBytes", 1L << 20);
+
+    private final File file;
+    /* Swapped under the monitor of this, so force() finds an open channel */
+    private FileChannel channel;
+    private long size;
+
+    public AcceptorLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The Prepare and AcceptRequest messages in the log, in the order they
+     * were appended. Must be called once, before anything is appended.
+     */
+    public List<PaxosMessage> recover() throws IOException {
+        List<PaxosMessage> ret = new ArrayList<PaxosMessage>();
+        byte[] data = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.remaining() > 0) {
+            int start = buf.position();
+            int length = CommitLog.nextRecord(buf);
+            Serializable content = null;
+            if (length >= 0) {
+                try {
+                    content = BinaryCodec.decode(data, buf.position(), length).content;
+                } catch (ClassNotFoundException e) {
+                } catch (IOException e) {
+                }
+            }
+            if (!(content instanceof PaxosMessage)) {
+                System.err.println("Acceptor log " + file + ": torn or corrupt record at offset "
+                        + start + ", dropping the rest");
+                buf.position(start);
+                break;
+            }
+            ret.add((PaxosMessage) content);
+            buf.position(buf.position() + length);
+        }
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.truncate(buf.position());
+        ch.position(buf.position());
+        size = buf.position();
+        synchronized (this) {
+            channel = ch;
+        }
+        return ret;
+    }
+
+    /**
+     * Append a Prepare this acceptor promised or an AcceptRequest it
+     * accepted.
+     */
+    public void append(PaxosMessage msg) throws IOException {
+        ByteBuffer record = encode(msg);
+        long before = size;
+        try {
+            while (record.hasRemaining())
+                size += channel.write(record);
+        } catch (IOException e) {
+            channel.truncate(before);
+            channel.position(before);
+            size = before;
+            throw e;
+        }
+    }
+
+    private static ByteBuffer encode(PaxosMessage msg) throws IOException {
+        return CommitLog.record(BinaryCodec.encode(new Message(null, 0, "Paxos", msg)));
+    }
+
+    /**
+     * Whether the log has grown enough to be rewritten.
+     */
+    public boolean full() {
+        return size >= maxBytes;
+    }
+
+    /**
+     * Replace the log with the given promises, in the order they were made,
+     * followed by the given accept requests. The new log is durable when
+     * this returns.
+     */
+    public void rewrite(Collection<PaxosMessage> promises, Collection<PaxosMessage> accepted) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long written = 0;
+        try {
+            List<PaxosMessage> records = new ArrayList<PaxosMessage>(promises);
+            records.addAll(accepted);
+            for (PaxosMessage msg: records) {
+                ByteBuffer record = encode(msg);
+                while (record.hasRemaining())
+                    written += ch.write(record);
+            }
+            ch.force(false);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        size = written;
+        synchronized (this) {
+            channel.close();
+            channel = ch;
+        }
+    }
+
+    /**
+     * Make everything appended so far durable. May be called on any thread,
+     * also while the acceptor appends.
+     */
+    public void force() throws IOException {
+        FileChannel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        if (ch == null)
+            return;
+        try {
+            ch.force(false);
+        } catch (ClosedChannelException e) {
+            /* Replaced by a rewritten log, which was forced */
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+}
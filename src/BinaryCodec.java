@@ -0,0 +1,444 @@
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A hand-written binary encoding for Message and the protocol types it
+ * carries, used instead of Java serialization (see MessageSocket).
+ *
+ * A frame starts with two magic bytes and a format version. Strings and byte
+ * arrays are length-prefixed, ints and longs are zigzag varints, and enums are
+ * sent as ordinals. Content of any other type is embedded as a Java
+ * serialized blob, so every Serializable can still be sent.
+ *
+ * Java serialization streams always start with 0xACED, so isBinary can tell
+ * the two encodings apart and a receiver accepts both.
+ *
+ * Version 2 added the correlation ids of Message; version 1 frames are still
+ * decoded, with both ids 0. Version 3 added the slot of PaxosMessage, which
+ * is taken from the commit id in older frames, version 4 the values a
+ * Promise reports, version 5 batches of commits, version 6 the file
+ * hashes of a commit, version 7 the commit id of a CommitResponse,
+ * version 8 the failure of a SyncResponse and version 9 the base of a
+ * commit.
+ */
+class BinaryCodec {
+    public static final int magic0 = 'L', magic1 = 'C';
+    public static final int version = 9;
+
+    private static final int tagNull = 0,
+            tagSerialized = 1,
+            tagCommit = 2,
+            tagCommitRequest = 3,
+            tagCommitResponse = 4,
+            tagSyncRequest = 5,
+            tagSyncResponse = 6,
+            tagPaxosMessage = 7,
+            tagUpdateLogRequest = 8,
+            tagCommitList = 9;
+
+    public static boolean isBinary(byte[] frame, int offset, int length) {
+        return length >= 3 && frame[offset] == magic0 && frame[offset + 1] == magic1;
+    }
+
+    public static byte[] encode(Message msg) throws IOException {
+        Writer w = new Writer();
+        w.out.write(magic0);
+        w.out.write(magic1);
+        w.out.write(version);
+        w.writeString(msg.replyAddress);
+        w.writeInt(msg.replyPort);
+        w.writeLong(msg.requestId);
+        w.writeLong(msg.replyTo);
+        w.writeString(msg.title);
+        w.writeContent(msg.content);
+        return w.out.toByteArray();
+    }
+
+    public static Message decode(byte[] frame, int offset, int length)
+            throws ClassNotFoundException, IOException {
+        if (!isBinary(frame, offset, length))
+            throw new StreamCorruptedException("Not a binary frame");
+        Reader r = new Reader(frame, offset + 2, offset + length);
+        int v = r.readByte();
+        if (v < 1 || v > version)
+            throw new StreamCorruptedException("Unsupported binary frame version " + v);
+        r.version = v;
+        String replyAddress = r.readString();
+        int replyPort = r.readInt();
+        long requestId = 0, replyTo = 0;
+        if (v >= 2) {
+            requestId = r.readLong();
+            replyTo = r.readLong();
+        }
+        String title = r.readString();
+        Serializable content = r.readContent();
+        if (r.pos != r.end)
+            throw new StreamCorruptedException("Trailing bytes in binary frame");
+        Message msg = new Message(replyAddress, replyPort, title, content);
+        msg.requestId = requestId;
+        msg.replyTo = replyTo;
+        return msg;
+    }
+
+    /**
+     * A commit on its own, as a version byte followed by the commit; the
+     * records of CommitLog hold these.
+     */
+    public static byte[] encodeCommit(Commit c) {
+        Writer w = new Writer();
+        w.out.write(version);
+        w.writeCommit(c);
+        return w.out.toByteArray();
+    }
+
+    public static Commit decodeCommit(byte[] b, int offset, int length) throws IOException {
+        Reader r = new Reader(b, offset, offset + length);
+        int v = r.readByte();
+        if (v < 6 || v > version)
+            throw new StreamCorruptedException("Unsupported commit version " + v);
+        r.version = v;
+        Commit c = r.readCommit();
+        if (r.pos != r.end)
+            throw new StreamCorruptedException("Trailing bytes after commit");
+        return c;
+    }
+
+    private static class Writer {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void writeContent(Serializable o) throws IOException {
+            if (o == null) {
+                out.write(tagNull);
+            } else if (o.getClass() == Commit.class) {
+                out.write(tagCommit);
+                writeCommit((Commit) o);
+            } else if (o.getClass() == CommitRequest.class) {
+                CommitRequest x = (CommitRequest) o;
+                out.write(tagCommitRequest);
+                writeString(x.responseTitle);
+                writeInt(x.baseCommit);
+                writeNullableCommit(x.proposedCommit);
+            } else if (o.getClass() == CommitResponse.class) {
+                CommitResponse x = (CommitResponse) o;
+                out.write(tagCommitResponse);
+                out.write(x.accepted ? 1 : 0);
+                writeString(x.comment);
+                writeInt(x.commitId);
+            } else if (o.getClass() == SyncRequest.class) {
+                SyncRequest x = (SyncRequest) o;
+                out.write(tagSyncRequest);
+                writeString(x.responseTitle);
+                writeInt(x.baseCommit);
+            } else if (o.getClass() == SyncResponse.class && isCommitList(((SyncResponse) o).commits)) {
+                out.write(tagSyncResponse);
+                writeCommitList(((SyncResponse) o).commits);
+                writeString(((SyncResponse) o).failure);
+            } else if (o.getClass() == PaxosMessage.class) {
+                PaxosMessage x = (PaxosMessage) o;
+                out.write(tagPaxosMessage);
+                writeInt(x.type == null ? -1 : x.type.ordinal());
+                writeInt(x.proposalNumber);
+                writeInt(x.slot);
+                writeNullableCommit(x.commit);
+                writeString(x.responseTitle);
+                writeCommitList(x.batch);
+                /* Each reported value goes with the number it was accepted with */
+                int numbers = x.acceptedNumbers == null ? 0 : x.acceptedNumbers.length;
+                if (x.acceptedCommits != null && x.acceptedCommits.size() != numbers)
+                    throw new InvalidObjectException("PaxosMessage reports " + x.acceptedCommits.size()
+                            + " accepted commits but " + numbers + " proposal numbers");
+                writeCommitList(x.acceptedCommits);
+                for (int i = 0; x.acceptedCommits != null && i < x.acceptedCommits.size(); ++i)
+                    writeInt(x.acceptedNumbers[i]);
+            } else if (o.getClass() == UpdateLogRequest.class) {
+                UpdateLogRequest x = (UpdateLogRequest) o;
+                out.write(tagUpdateLogRequest);
+                writeString(x.responseTitle);
+                writeInt(x.baseCommit);
+            } else if (o.getClass() == ArrayList.class && isCommitList((List<?>) o)) {
+                out.write(tagCommitList);
+                @SuppressWarnings("unchecked")
+                List<Commit> commits = (List<Commit>) o;
+                writeCommitList(commits);
+            } else {
+                out.write(tagSerialized);
+                writeBytes(MessageSocket.serialize(o));
+            }
+        }
+
+        private boolean isCommitList(List<?> list) {
+            if (list == null)
+                return true;
+            for (Object c: list)
+                if (c == null || c.getClass() != Commit.class)
+                    return false;
+            return true;
+        }
+
+        void writeCommitList(List<Commit> commits) {
+            if (commits == null) {
+                writeInt(-1);
+                return;
+            }
+            writeInt(commits.size());
+            for (Commit c: commits)
+                writeCommit(c);
+        }
+
+        void writeNullableCommit(Commit c) {
+            if (c == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                writeCommit(c);
+            }
+        }
+
+        void writeCommit(Commit c) {
+            writeInt(c.commitId);
+            writeLong(c.nanoTimestamp);
+            writeString(c.author);
+            writeString(c.message);
+            writeInt(c.changedFiles.size());
+            for (Map.Entry<String, byte[]> e: c.changedFiles.entrySet()) {
+                writeString(e.getKey());
+                writeBytes(e.getValue());
+            }
+            writeInt(c.removedFiles.size());
+            for (String s: c.removedFiles)
+                writeString(s);
+            writeInt(c.changedFileHashes.size());
+            for (Map.Entry<String, String> e: c.changedFileHashes.entrySet()) {
+                writeString(e.getKey());
+                writeString(e.getValue());
+            }
+            writeInt(c.base);
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeUnsigned(0);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeUnsigned(b.length + 1L);
+            out.write(b, 0, b.length);
+        }
+
+        void writeBytes(byte[] b) {
+            if (b == null) {
+                writeUnsigned(0);
+                return;
+            }
+            writeUnsigned(b.length + 1L);
+            out.write(b, 0, b.length);
+        }
+
+        void writeInt(int x) {
+            writeLong(x);
+        }
+
+        void writeLong(long x) {
+            writeUnsigned((x << 1) ^ (x >> 63));
+        }
+
+        void writeUnsigned(long x) {
+            while ((x & ~0x7fL) != 0) {
+                out.write((int) ((x & 0x7f) | 0x80));
+                x >>>= 7;
+            }
+            out.write((int) x);
+        }
+    }
+
+    private static class Reader {
+        final byte[] buf;
+        int pos;
+        final int end;
+        int version = BinaryCodec.version;
+
+        Reader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        Serializable readContent() throws ClassNotFoundException, IOException {
+            int tag = readByte();
+            switch (tag) {
+            case tagNull:
+                return null;
+            case tagCommit:
+                return readCommit();
+            case tagCommitRequest: {
+                CommitRequest x = new CommitRequest();
+                x.responseTitle = readString();
+                x.baseCommit = readInt();
+                x.proposedCommit = readNullableCommit();
+                return x;
+            }
+            case tagCommitResponse: {
+                CommitResponse x = new CommitResponse();
+                x.accepted = readByte() != 0;
+                x.comment = readString();
+                if (version >= 7)
+                    x.commitId = readInt();
+                return x;
+            }
+            case tagSyncRequest: {
+                SyncRequest x = new SyncRequest();
+                x.responseTitle = readString();
+                x.baseCommit = readInt();
+                return x;
+            }
+            case tagSyncResponse: {
+                SyncResponse x = new SyncResponse();
+                x.commits = readCommitList();
+                if (version >= 8)
+                    x.failure = readString();
+                return x;
+            }
+            case tagPaxosMessage: {
+                PaxosMessage x = new PaxosMessage();
+                int type = readInt();
+                PaxosMessage.Type[] types = PaxosMessage.Type.values();
+                if (type < -1 || type >= types.length)
+                    throw new StreamCorruptedException("Unknown paxos message type " + type);
+                x.type = type == -1 ? null : types[type];
+                x.proposalNumber = readInt();
+                if (version >= 3)
+                    x.slot = readInt();
+                x.commit = readNullableCommit();
+                x.responseTitle = readString();
+                if (version < 3)
+                    x.slot = x.commit == null ? -1 : x.commit.commitId;
+                if (version >= 5)
+                    x.batch = readCommitList();
+                if (version >= 4) {
+                    x.acceptedCommits = readCommitList();
+                    if (x.acceptedCommits != null) {
+                        x.acceptedNumbers = new int[x.acceptedCommits.size()];
+                        for (int i = 0; i < x.acceptedNumbers.length; ++i)
+                            x.acceptedNumbers[i] = readInt();
+                    }
+                }
+                return x;
+            }
+            case tagUpdateLogRequest: {
+                UpdateLogRequest x = new UpdateLogRequest();
+                x.responseTitle = readString();
+                x.baseCommit = readInt();
+                return x;
+            }
+            case tagCommitList:
+                return readCommitList();
+            case tagSerialized: {
+                byte[] b = readBytes();
+                return MessageSocket.deserialize(b, 0, b.length);
+            }
+            default:
+                throw new StreamCorruptedException("Unknown content tag " + tag);
+            }
+        }
+
+        ArrayList<Commit> readCommitList() throws IOException {
+            int n = readInt();
+            if (n < 0)
+                return null;
+            ArrayList<Commit> commits = new ArrayList<Commit>(Math.min(n, 1024));
+            for (int i = 0; i < n; ++i)
+                commits.add(readCommit());
+            return commits;
+        }
+
+        Commit readNullableCommit() throws IOException {
+            return readByte() == 0 ? null : readCommit();
+        }
+
+        Commit readCommit() throws IOException {
+            Commit c = new Commit();
+            c.commitId = readInt();
+            c.nanoTimestamp = readLong();
+            c.author = readString();
+            c.message = readString();
+            int n = readInt();
+            for (int i = 0; i < n; ++i) {
+                String path = readString();
+                c.changedFiles.put(path, readBytes());
+            }
+            n = readInt();
+            for (int i = 0; i < n; ++i)
+                c.removedFiles.add(readString());
+            if (version >= 6) {
+                n = readInt();
+                for (int i = 0; i < n; ++i) {
+                    String path = readString();
+                    c.changedFileHashes.put(path, readString());
+                }
+            }
+            if (version >= 9)
+                c.base = readInt();
+            return c;
+        }
+
+        String readString() throws IOException {
+            int n = readLength();
+            if (n < 0)
+                return null;
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        byte[] readBytes() throws IOException {
+            int n = readLength();
+            if (n < 0)
+                return null;
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return b;
+        }
+
+        /**
+         * Returns -1 for null.
+         */
+        private int readLength() throws IOException {
+            long n = readUnsigned() - 1;
+            if (n < -1)
+                throw new StreamCorruptedException("Invalid length");
+            if (n > end - pos)
+                throw new EOFException("Truncated binary frame");
+            return (int) n;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end)
+                throw new EOFException("Truncated binary frame");
+            return buf[pos++] & 0xff;
+        }
+
+        int readInt() throws IOException {
+            long x = readLong();
+            if (x != (int) x)
+                throw new StreamCorruptedException("Integer out of range");
+            return (int) x;
+        }
+
+        long readLong() throws IOException {
+            long x = readUnsigned();
+            return (x >>> 1) ^ -(x & 1);
+        }
+
+        long readUnsigned() throws IOException {
+            long x = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                x |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return x;
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Content-addressed store of file contents, keyed by the SHA-256 of the
+ * content in hex (see HashUtils). Commits in the update log refer to their
+ * files by hash (see Commit.changedFileHashes) and the contents are
+ * replicated between servers separately from consensus (see LchServer).
+ *
+ * Without a directory blobs are kept in memory. With one they are written
+ * there, so they survive a restart, and memory only caches the most recently
+ * used of them, up to cacheBytes (lch.blobs.cacheBytes) in all; the others
+ * are read back from the directory when they are asked for. The history a
+ * server keeps can then outgrow its heap.
+ *
+ * Files are written but not forced to disk; force() does that for all the
+ * files written since the last force and their directory entries (see
+ * GroupCommit). A file a crash left incomplete fails the hash check when it
+ * is read, and is removed so that the contents can be stored again; storing
+ * contents whose file is already there rewrites it unless it holds them.
+ *
+ * This class is thread-safe.
+ */
+class BlobStore implements GroupCommit.Syncable {
+    public static final long cacheBytes = Long.getLong("lch.blobs.cacheBytes", 64L << 20);
+
+    /* Contents by hash, least recently used first; guarded by the monitor of
+     * cache */
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    /* Contents that could not be written to the directory, which must stay
+     * in memory */
+    private final ConcurrentMap<String, byte[]> unwritten = new ConcurrentHashMap<String, byte[]>();
+    /* Files written since the last force, guarded by the monitor of the
+     * store */
+    private List<Path> unforced = new ArrayList<Path>();
+    private final AtomicLong hits = new AtomicLong(0), reads = new AtomicLong(0), evictions = new AtomicLong(0);
+    private final File dir;
+
+    public BlobStore(File dir) {
+        this.dir = dir;
+        if (dir == null)
+            return;
+        dir.mkdirs();
+        /* Left by writes a crash interrupted */
+        File[] tmps = dir.listFiles();
+        for (int i = 0; tmps != null && i < tmps.length; ++i)
+            if (tmps[i].getName().endsWith(".tmp"))
+                tmps[i].delete();
+    }
+
+    public static String hash(byte[] content) {
+        return HashUtils.genSHA256(content);
+    }
+
+    /**
+     * Whether s looks like a hash, so it is safe to use as a file name.
+     */
+    public static boolean isHash(String s) {
+        return s != null && s.length() == 64 && s.matches("[0-9a-f]*");
+    }
+
+    /**
+     * Store content and return its hash.
+     */
+    public String put(byte[] content) {
+        String hash = hash(content);
+        store(hash, content);
+        return hash;
+    }
+
+    /**
+     * Store content received under the given hash. Returns false, storing
+     * nothing, if the content does not match the hash.
+     */
+    public boolean put(String hash, byte[] content) {
+        if (!hash(content).equals(hash))
+            return false;
+        store(hash, content);
+        return true;
+    }
+
+    private void store(String hash, byte[] content) {
+        if (cached(hash) != null)
+            return;
+        if (dir != null) {
+            File file = new File(dir, hash);
+            if (!holds(file, content)) {
+                /* Threads storing the same contents each write a file of
+                 * their own */
+                Path tmp = null;
+                try {
+                    tmp = Files.createTempFile(dir.toPath(), hash, ".tmp");
+                    Files.write(tmp, content);
+                    Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    if (tmp != null)
+                        tmp.toFile().delete();
+                    unwritten.putIfAbsent(hash, content);
+                    return;
+                }
+            }
+            /* A file found in place may not have been forced yet either */
+            synchronized (this) {
+                unforced.add(file.toPath());
+            }
+        }
+        cache(hash, content);
+    }
+
+    /**
+     * Whether file exists and holds exactly content, rather than what a crash
+     * left of it.
+     */
+    private static boolean holds(File file, byte[] content) {
+        if (file.length() != content.length)
+            return false;
+        try {
+            return Arrays.equals(Files.readAllBytes(file.toPath()), content);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private byte[] cached(String hash) {
+        synchronized (cache) {
+            return cache.get(hash);
+        }
+    }
+
+    /**
+     * Keep content in memory, evicting the least recently used contents
+     * beyond cacheBytes if they can be read back.
+     */
+    private void cache(String hash, byte[] content) {
+        if (dir != null && content.length > cacheBytes)
+            return;
+        synchronized (cache) {
+            byte[] old = cache.put(hash, content);
+            cachedBytes += content.length - (old == null ? 0 : old.length);
+            if (dir == null)
+                return;
+            Iterator<byte[]> it = cache.values().iterator();
+            while (cachedBytes > cacheBytes) {
+                cachedBytes -= it.next().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The content with the given hash, or null if it is not here.
+     */
+    public byte[] get(String hash) {
+        byte[] content = cached(hash);
+        if (content == null)
+            content = unwritten.get(hash);
+        if (content != null) {
+            hits.incrementAndGet();
+            return content;
+        }
+        if (dir == null || !isHash(hash))
+            return null;
+        File file = new File(dir, hash);
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+        if (!hash(content).equals(hash)) {
+            file.delete();
+            return null;
+        }
+        reads.incrementAndGet();
+        cache(hash, content);
+        return content;
+    }
+
+    /**
+     * Make the files written so far durable. May be called on any thread,
+     * also while contents are stored.
+     */
+    public void force() throws IOException {
+        List<Path> files;
+        synchronized (this) {
+            if (unforced.isEmpty())
+                return;
+            files = unforced;
+            unforced = new ArrayList<Path>();
+        }
+        try {
+            for (Path file: files) {
+                FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+                try {
+                    ch.force(false);
+                } finally {
+                    ch.close();
+                }
+            }
+            FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                unforced.addAll(files);
+            }
+            throw e;
+        }
+    }
+
+    public boolean contains(String hash) {
+        return get(hash) != null;
+    }
+
+    /**
+     * How often contents were found in memory and read back from the
+     * directory, and how much memory holds.
+     */
+    public String stats() {
+        long bytes;
+        int count;
+        synchronized (cache) {
+            bytes = cachedBytes;
+            count = cache.size();
+        }
+        return "cached: " + count + " (" + bytes + " bytes), hits: " + hits.get()
+            + ", read back: " + reads.get() + ", evicted: " + evictions.get();
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.*;
+
+/**
+ * Compares frame size and encode/decode time of BinaryCodec and Java
+ * serialization on typical protocol messages.
+ */
+public class CodecBenchmark {
+    public static final void main(String[] args) throws Exception {
+        int iterations = 20000;
+        if (args.length >= 1)
+            iterations = Integer.parseInt(args[0]);
+
+        PaxosMessage prepare = new PaxosMessage();
+        prepare.type = PaxosMessage.Type.Prepare;
+        prepare.proposalNumber = 12345;
+        prepare.responseTitle = ServerTester.randomTitle();
+        run("Prepare", new Message(null, 12345, "Paxos", prepare), iterations);
+
+        PaxosMessage accept = new PaxosMessage();
+        accept.type = PaxosMessage.Type.AcceptRequest;
+        accept.proposalNumber = 12345;
+        accept.responseTitle = ServerTester.randomTitle();
+        accept.commit = randomCommit(42, 5, 2048);
+        run("AcceptRequest, 5 x 2KB", new Message(null, 12345, "Paxos", accept), iterations);
+
+        CommitResponse response = new CommitResponse();
+        response.accepted = false;
+        response.comment = "Please sync";
+        run("CommitResponse", new Message(null, 12345, ServerTester.randomTitle(), response), iterations);
+
+        SyncResponse sync = new SyncResponse();
+        sync.commits = new ArrayList<Commit>();
+        for (int i = 0; i < 50; ++i)
+            sync.commits.add(randomCommit(i + 1, 3, 256));
+        run("SyncResponse, 50 commits", new Message(null, 12345, ServerTester.randomTitle(), sync),
+                iterations / 10);
+    }
+
+    private static void run(String name, Message msg, int iterations) throws Exception {
+        byte[] java = MessageSocket.serialize(msg);
+        byte[] binary = BinaryCodec.encode(msg);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            MessageSocket.deserialize(MessageSocket.serialize(msg), 0, java.length);
+        long javaNanos = (System.nanoTime() - t0) / iterations;
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            BinaryCodec.decode(BinaryCodec.encode(msg), 0, binary.length);
+        long binaryNanos = (System.nanoTime() - t0) / iterations;
+
+        System.out.println(name + ": java " + java.length + " bytes, " + javaNanos + " ns"
+                + "; binary " + binary.length + " bytes, " + binaryNanos + " ns");
+    }
+
+    private static Random rand = new Random(0);
+    private static Commit randomCommit(int commitId, int numFiles, int fileSize) {
+        Commit c = new Commit();
+        c.commitId = commitId;
+        c.nanoTimestamp = System.nanoTime();
+        c.author = "developer";
+        c.message = ServerTester.randomTitle();
+        for (int i = 0; i < numFiles; ++i) {
+            byte[] content = new byte[fileSize];
+            rand.nextBytes(content);
+            c.changedFiles.put("src/file" + i + ".java", content);
+        }
+        c.removedFiles.add("src/removed.java");
+        return c;
+    }
+}
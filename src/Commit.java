@@ -6,18 +6,33 @@ public class Commit implements Serializable {
 
     public int commitId;
     public Map<String, byte[]> changedFiles;
+    /**
+     * The changed files by content hash (see BlobStore) instead of by
+     * content. Servers keep and agree on commits in this form, so the
+     * contents never travel through Paxos.
+     */
+    public Map<String, String> changedFileHashes;
     public Set<String> removedFiles;
     public long nanoTimestamp;
     public String author;
     public String message;
+    /**
+     * For a commit a server moved to a later slot than its client asked for
+     * (see LchServer.rebase), the commit it was checked against, -1 if it
+     * was not moved. A moved commit only takes effect if no commit after
+     * base touches its paths.
+     */
+    public int base;
 
     public Commit() {
         commitId = 0;
         changedFiles = new HashMap<String, byte[]>();
+        changedFileHashes = new HashMap<String, String>();
         removedFiles = new HashSet<String>();
         nanoTimestamp = 0;
         author = "";
         message = "";
+        base = -1;
     }
 
     public boolean equals(Object o) {
@@ -27,10 +42,12 @@ public class Commit implements Serializable {
         if (!equalsChangedFiles(changedFiles, x.changedFiles))
             return false;
         return commitId == x.commitId
+            && changedFileHashes.equals(x.changedFileHashes)
             && removedFiles.equals(x.removedFiles)
             && nanoTimestamp == x.nanoTimestamp
             && author.equals(x.author)
-            && message.equals(x.message);
+            && message.equals(x.message)
+            && base == x.base;
     }
 
     public static class ArrayWrapper {
@@ -61,9 +78,25 @@ public class Commit implements Serializable {
         return ma.equals(mb);
     }
 
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        commitId = fields.get("commitId", 0);
+        changedFiles = (Map<String, byte[]>) fields.get("changedFiles", null);
+        changedFileHashes = (Map<String, String>) fields.get("changedFileHashes", null);
+        removedFiles = (Set<String>) fields.get("removedFiles", null);
+        nanoTimestamp = fields.get("nanoTimestamp", 0L);
+        author = (String) fields.get("author", null);
+        message = (String) fields.get("message", null);
+        /* Written before these fields existed */
+        if (changedFileHashes == null)
+            changedFileHashes = new HashMap<String, String>();
+        base = fields.defaulted("base") ? -1 : fields.get("base", -1);
+    }
+
     public String toString() {
         String ret = "commit id: " + commitId;
-        ret += ", changed files: " + changedFiles.size();
+        ret += ", changed files: " + (changedFiles.size() + changedFileHashes.size());
         ret += ", removed files: " + removedFiles.size();
         ret += ", timestamp: " + nanoTimestamp;
         ret += ", author: " + author;
@@ -0,0 +1,192 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Groups the commit requests a proposer receives within a short time into
+ * batches of commits for consecutive slots (commit ids), so that a single
+ * Paxos decision covers the whole batch (see LchServer).
+ *
+ * A batch is proposed at once while the proposer is idle, and otherwise
+ * once it holds maxBatchSize commits or lingerTime after its first commit
+ * arrived, so requests only wait for each other while earlier proposals are
+ * under way.
+ *
+ * Clients that commit on the same head all ask for the same slot. A request
+ * for a slot already taken by a commit in the batch being collected is
+ * moved behind the batch if it touches none of the paths the commits from
+ * that slot on touch (see Proposer.rebase), so such requests share one
+ * batch in consecutive slots. One that does touch them waits for the batch
+ * to be decided and is then admitted again, see Proposer.propose. A request
+ * for any other slot starts a new batch.
+ *
+ * add must only be called on the executor passed to the constructor, which
+ * must run one task at a time; the linger timer flushes on it too.
+ */
+class CommitBatcher {
+    /**
+     * lch.batch.size is the largest number of commits in a batch, 16 by
+     * default; 1 turns batching off. lch.batch.lingerMicros is how long a
+     * batch waits for more commits before it is proposed anyway.
+     */
+    public static final int maxBatchSize = Math.max(1, Integer.getInteger("lch.batch.size", 16));
+    public static final long lingerTime = Long.getLong("lch.batch.lingerMicros", 2000) * 1000;
+
+    static class Pending {
+        final Message msg;
+        final CommitRequest req;
+        /* The request as admitted, before it was moved to another slot */
+        final CommitRequest original;
+        /* Set once req went into a proposal, after which it must keep its
+         * slot until that is decided, or it could be decided twice */
+        volatile boolean proposed;
+
+        Pending(Message msg, CommitRequest req) {
+            this.msg = msg;
+            this.req = req;
+            this.original = req;
+        }
+
+        /**
+         * p moved to the slot of req.
+         */
+        Pending(Pending p, CommitRequest req) {
+            this.msg = p.msg;
+            this.req = req;
+            this.original = p.original;
+        }
+    }
+
+    interface Proposer {
+        /**
+         * Decide a batch of commits for consecutive slots, in slot order.
+         * The conflicting requests touch paths commits of the batch touch,
+         * or were proposed in one of its slots before; they are to be
+         * admitted again once the batch is decided or failed.
+         */
+        void propose(List<Pending> batch, List<Pending> conflicting);
+
+        /**
+         * A copy of a request for a slot a commit in the batch takes, moved
+         * to the slot after the batch, or null if it touches a path one of
+         * the commits of the batch from its slot on touches.
+         */
+        Pending rebase(Pending request, List<Pending> batch);
+
+        /**
+         * Whether no proposal is under way, so a batch gains nothing by
+         * waiting for more commits.
+         */
+        boolean idle();
+    }
+
+    /**
+     * A snapshot of the counters of a batcher. The fill is the average share
+     * of maxBatchSize the proposed batches used.
+     */
+    static class Stats {
+        public final long batches, commits, fullBatches, rebased, conflicts;
+
+        Stats(long batches, long commits, long fullBatches, long rebased, long conflicts) {
+            this.batches = batches;
+            this.commits = commits;
+            this.fullBatches = fullBatches;
+            this.rebased = rebased;
+            this.conflicts = conflicts;
+        }
+
+        public double fill() {
+            return batches == 0 ? 0 : (double) commits / batches / maxBatchSize;
+        }
+
+        public String toString() {
+            return "batches: " + batches + ", commits: " + commits
+                + ", fill: " + Math.round(fill() * 100) + "%, full: " + fullBatches
+                + ", rebased: " + rebased + ", conflicts: " + conflicts;
+        }
+    }
+
+    private static final ScheduledExecutorService timer
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "batch-linger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final Proposer proposer;
+    private final Executor executor;
+    private List<Pending> batch = new ArrayList<Pending>();
+    /* Requests that conflict with the batch, see Proposer.propose */
+    private List<Pending> conflicting = new ArrayList<Pending>();
+    /* Tells the linger timer of an earlier batch from the current one */
+    private long generation = 0;
+    private final AtomicLong batches = new AtomicLong(0),
+            commits = new AtomicLong(0),
+            fullBatches = new AtomicLong(0),
+            rebased = new AtomicLong(0),
+            conflicts = new AtomicLong(0);
+
+    public CommitBatcher(Proposer proposer, Executor executor) {
+        this.proposer = proposer;
+        this.executor = executor;
+    }
+
+    public void add(Pending request) {
+        int commitId = request.req.proposedCommit.commitId;
+        if (!batch.isEmpty()) {
+            int first = batch.get(0).req.proposedCommit.commitId;
+            if (commitId >= first && commitId < first + batch.size()) {
+                Pending moved = request.proposed ? null : proposer.rebase(request, batch);
+                if (moved == null) {
+                    conflicts.incrementAndGet();
+                    conflicting.add(request);
+                    return;
+                }
+                rebased.incrementAndGet();
+                request = moved;
+            } else if (commitId != first + batch.size()) {
+                flush();
+            }
+        }
+        batch.add(request);
+        if (batch.size() >= maxBatchSize) {
+            fullBatches.incrementAndGet();
+            flush();
+        } else if (proposer.idle()) {
+            flush();
+        } else if (batch.size() == 1) {
+            final long g = generation;
+            timer.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                if (generation == g)
+                                    flush();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                    }
+                }
+            }, lingerTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush() {
+        ++generation;
+        if (batch.isEmpty())
+            return;
+        List<Pending> b = batch, c = conflicting;
+        batch = new ArrayList<Pending>();
+        conflicting = new ArrayList<Pending>();
+        batches.incrementAndGet();
+        commits.addAndGet(b.size());
+        proposer.propose(b, c);
+    }
+
+    public Stats stats() {
+        return new Stats(batches.get(), commits.get(), fullBatches.get(), rebased.get(), conflicts.get());
+    }
+}
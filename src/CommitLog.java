@@ -0,0 +1,436 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * The update log of a server on disk, written ahead: every decided commit is
+ * appended as one record, so persisting a commit costs as much as the commit
+ * and not as much as the history before it.
+ *
+ * The log is a directory of segment files, each named after the commit id of
+ * its first record, and a new segment is started once the last one holds
+ * segmentBytes (lch.wal.segmentBytes). A record is the length of its
+ * payload, the CRC32 of the payload, both as big-endian ints, and the
+ * payload: the commit encoded by BinaryCodec.encodeCommit. Commits hold
+ * their files by hash (see BlobStore), so records stay small.
+ *
+ * Segments are read through read-only memory mappings, and every segment
+ * keeps the offset of each of its records, indexed by commit id, so read()
+ * and range() find any commit in the log without scanning and without
+ * keeping commits on the heap. The offsets are rebuilt by recover(), which
+ * checks every record anyway.
+ *
+ * Segments that a snapshot (see Snapshot) covers are deleted with
+ * dropBefore.
+ *
+ * A crash can leave the last record half written. recover() stops at the
+ * first record that is cut short, fails its checksum or does not follow the
+ * one before it, truncates its segment there and deletes the segments after
+ * it, so later appends continue a log that is whole.
+ *
+ * Appends are written but not forced to disk; force() does that, for many
+ * appends at once (see GroupCommit).
+ *
+ * Appending, recovering and dropping segments is not thread-safe; LchServer
+ * does that with paxosLock held. force(), first(), end(), read() and range()
+ * may be called on any thread without it: a commit is readable once append
+ * returns.
+ */
+class CommitLog implements GroupCommit.Syncable {
+    public static final long segmentBytes = Long.getLong("lch.wal.segmentBytes", 64L << 20);
+    private static final int headerBytes = 8;
+    /* A length beyond this is taken for a torn or corrupt header */
+    private static final int maxRecordBytes = 1 << 30;
+
+    /**
+     * A segment file and where its records start.
+     */
+    private static class Segment {
+        final File file;
+        /* The commit id of the first record */
+        final int first;
+        /* offsets[i] is where the record of commit first + i starts and
+         * offsets[count] where the last one ends. offsets is replaced, not
+         * resized, before count is raised, so readers that read count first
+         * see every offset up to it */
+        volatile long[] offsets = new long[64];
+        volatile int count = 0;
+        /* Open while records are appended to the segment; swapped under the
+         * monitor of the CommitLog */
+        volatile FileChannel channel;
+        /* Only used by the appending thread */
+        long size = 0;
+        /* Guarded by the monitor of this */
+        private MappedByteBuffer map = null;
+
+        Segment(File file, int first) {
+            this.file = file;
+            this.first = first;
+        }
+
+        /**
+         * Index the record after the last one, which ends at end.
+         */
+        void added(long end) {
+            long[] o = offsets;
+            if (count + 2 > o.length)
+                o = Arrays.copyOf(o, 2 * o.length);
+            o[count + 1] = end;
+            offsets = o;
+            count = count + 1;
+        }
+
+        /**
+         * A buffer of its own over the segment, holding at least the first
+         * end bytes.
+         */
+        synchronized ByteBuffer mapped(long end) throws IOException {
+            if (map == null || map.capacity() < end) {
+                FileChannel ch = channel;
+                if (ch == null)
+                    throw new ClosedChannelException();
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            return map.duplicate();
+        }
+
+        /**
+         * Map the whole segment for good, as nothing will be appended to it.
+         */
+        synchronized void seal() throws IOException {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        /**
+         * Drop the mapping, which may reach past the end of the file once it
+         * was truncated.
+         */
+        synchronized void unmap() {
+            map = null;
+        }
+    }
+
+    private final File dir;
+    /* In commit id order, replaced as a whole so readers need no lock;
+     * segments[length - 1] is the one appended to */
+    private volatile Segment[] segments = new Segment[0];
+    /* The commit id the log starts at while it has no segments, -1 if any */
+    private volatile int emptyAt = -1;
+
+    public CommitLog(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    private static String segmentName(int firstCommitId) {
+        return String.format("%010d.log", firstCommitId);
+    }
+
+    /**
+     * The segment files in commit id order.
+     */
+    private File[] segmentFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.matches("[0-9]{10}\\.log");
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Read the commits in the log, in commit id order, and prepare for
+     * appending after the last of them. Must be called once, before append.
+     */
+    public List<Commit> recover() throws IOException {
+        List<Commit> commits = new ArrayList<Commit>();
+        List<Segment> recovered = new ArrayList<Segment>();
+        File[] files = segmentFiles();
+        for (int f = 0; f < files.length; ++f) {
+            int expected = commits.isEmpty()
+                ? Integer.parseInt(files[f].getName().substring(0, 10))
+                : commits.get(commits.size() - 1).commitId + 1;
+            Segment seg = new Segment(files[f], expected);
+            seg.channel = open(files[f]);
+            seg.size = seg.channel.size();
+            ByteBuffer buf = seg.mapped(seg.size);
+            String problem = null;
+            while (problem == null && buf.remaining() > 0) {
+                int start = buf.position();
+                int length = nextRecord(buf);
+                if (length < 0) {
+                    problem = "torn or corrupt record";
+                } else {
+                    try {
+                        byte[] payload = new byte[length];
+                        buf.get(payload);
+                        Commit c = BinaryCodec.decodeCommit(payload, 0, length);
+                        if (c.commitId != expected)
+                            problem = "commit " + c.commitId + " where " + expected + " belongs";
+                        else
+                            commits.add(c);
+                    } catch (IOException e) {
+                        problem = "undecodable record";
+                    }
+                }
+                if (problem != null) {
+                    buf.position(start);
+                    break;
+                }
+                seg.added(buf.position());
+                ++expected;
+            }
+            if (problem == null) {
+                recovered.add(seg);
+                continue;
+            }
+            System.err.println("Commit log " + files[f] + ": " + problem + " at offset "
+                    + buf.position() + ", dropping the rest of the log");
+            if (buf.position() == 0) {
+                seg.channel.close();
+                Files.delete(files[f].toPath());
+            } else {
+                seg.channel.truncate(buf.position());
+                seg.size = buf.position();
+                seg.unmap();
+                recovered.add(seg);
+            }
+            for (int g = f + 1; g < files.length; ++g)
+                Files.delete(files[g].toPath());
+            break;
+        }
+        /* Only the last segment stays open for appending */
+        for (int i = 0; i + 1 < recovered.size(); ++i) {
+            Segment seg = recovered.get(i);
+            seg.seal();
+            seg.channel.close();
+            seg.channel = null;
+        }
+        synchronized (this) {
+            segments = recovered.toArray(new Segment[0]);
+        }
+        return commits;
+    }
+
+    /**
+     * A record holding payload.
+     */
+    static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(headerBytes + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Check the record buf is positioned at. Returns the length of its
+     * payload and leaves buf at the payload if the record is whole and its
+     * checksum matches, otherwise -1.
+     */
+    static int nextRecord(ByteBuffer buf) {
+        if (buf.remaining() < headerBytes)
+            return -1;
+        int length = buf.getInt(), checksum = buf.getInt();
+        if (length < 0 || length > maxRecordBytes || length > buf.remaining())
+            return -1;
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(payload.position() + length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == checksum ? length : -1;
+    }
+
+    /**
+     * The first commit id in the log.
+     */
+    public int first() {
+        Segment[] segs = segments;
+        return segs.length == 0 ? emptyAt : segs[0].first;
+    }
+
+    /**
+     * The commit id after the last one in the log, which the next appended
+     * commit must have; -1 if the log is empty and any will do.
+     */
+    public int next() {
+        Segment[] segs = segments;
+        if (segs.length == 0)
+            return emptyAt;
+        Segment last = segs[segs.length - 1];
+        return last.first + last.count;
+    }
+
+    /**
+     * Append a commit, which must have the commit id next() returns.
+     */
+    public void append(Commit c) throws IOException {
+        int next = next();
+        if (next >= 0 && c.commitId != next)
+            throw new IllegalArgumentException("Commit " + c.commitId + " appended where " + next + " belongs");
+        ByteBuffer record = record(BinaryCodec.encodeCommit(c));
+        Segment[] segs = segments;
+        Segment seg = segs.length == 0 ? null : segs[segs.length - 1];
+        if (seg == null || seg.size >= segmentBytes) {
+            File file = new File(dir, segmentName(c.commitId));
+            Segment added = new Segment(file, c.commitId);
+            added.channel = open(file);
+            added.channel.truncate(0);
+            synchronized (this) {
+                /* What was appended to the old segment must not wait for a
+                 * force() that no longer sees it */
+                if (seg != null) {
+                    seg.channel.force(false);
+                    seg.seal();
+                    seg.channel.close();
+                    seg.channel = null;
+                }
+                segs = Arrays.copyOf(segs, segs.length + 1);
+                segs[segs.length - 1] = added;
+                segments = segs;
+            }
+            seg = added;
+        }
+        long before = seg.size;
+        try {
+            while (record.hasRemaining())
+                seg.size += seg.channel.write(record, seg.size);
+        } catch (IOException e) {
+            /* Do not leave a partial record for the next one to follow */
+            seg.channel.truncate(before);
+            seg.size = before;
+            throw e;
+        }
+        seg.added(seg.size);
+    }
+
+    /**
+     * The commit with commit id i, null if the log does not hold it.
+     */
+    public Commit read(int i) throws IOException {
+        List<Commit> ret = range(i, 1);
+        return ret == null || ret.isEmpty() ? null : ret.get(0);
+    }
+
+    /**
+     * The commits from commit id from on, at most max of them, decoded
+     * straight from the mapped segments; null if from is before first(),
+     * or the log was dropped or restarted while they were read.
+     */
+    public ArrayList<Commit> range(int from, int max) throws IOException {
+        Segment[] segs = segments;
+        int first = segs.length == 0 ? emptyAt : segs[0].first;
+        if (from < first)
+            return null;
+        ArrayList<Commit> ret = new ArrayList<Commit>();
+        /* The last segment that starts at or before from */
+        int lo = 0, hi = segs.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segs[mid].first <= from)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        try {
+            for (int s = lo; s < segs.length && ret.size() < max; ++s) {
+                Segment seg = segs[s];
+                int count = seg.count;
+                long[] offsets = seg.offsets;
+                int i = Math.max(0, from - seg.first);
+                if (i >= count)
+                    continue;
+                int to = (int) Math.min(count, (long) i + max - ret.size());
+                ByteBuffer buf = seg.mapped(offsets[to]);
+                for (; i < to; ++i) {
+                    buf.position((int) offsets[i]);
+                    int length = buf.getInt();
+                    buf.getInt();
+                    byte[] payload = new byte[length];
+                    buf.get(payload);
+                    ret.add(BinaryCodec.decodeCommit(payload, 0, length));
+                }
+            }
+        } catch (ClosedChannelException e) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Delete the segments that only hold commits before commit id i, which
+     * a snapshot covers. The last segment is always kept.
+     */
+    public void dropBefore(int i) throws IOException {
+        Segment[] segs = segments;
+        int drop = 0;
+        while (drop + 1 < segs.length && segs[drop + 1].first <= i)
+            ++drop;
+        if (drop == 0)
+            return;
+        synchronized (this) {
+            segments = Arrays.copyOfRange(segs, drop, segs.length);
+        }
+        /* Readers still holding their mappings can finish with them */
+        for (int s = 0; s < drop; ++s)
+            Files.delete(segs[s].file.toPath());
+    }
+
+    /**
+     * Delete the whole log and continue it with commit id i, for a server
+     * that took up a snapshot past the end of its log.
+     */
+    public void restartAt(int i) throws IOException {
+        Segment[] segs;
+        synchronized (this) {
+            segs = segments;
+            emptyAt = i;
+            segments = new Segment[0];
+            if (segs.length > 0 && segs[segs.length - 1].channel != null) {
+                segs[segs.length - 1].channel.close();
+                segs[segs.length - 1].channel = null;
+            }
+        }
+        for (File file: segmentFiles())
+            Files.delete(file.toPath());
+    }
+
+    /**
+     * Make everything appended so far durable. May be called on any thread,
+     * also while another appends.
+     */
+    public void force() throws IOException {
+        FileChannel ch;
+        synchronized (this) {
+            Segment[] segs = segments;
+            ch = segs.length == 0 ? null : segs[segs.length - 1].channel;
+        }
+        if (ch == null)
+            return;
+        try {
+            ch.force(false);
+        } catch (ClosedChannelException e) {
+            /* Replaced by a new segment, and forced before it was closed */
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        Segment[] segs = segments;
+        if (segs.length > 0 && segs[segs.length - 1].channel != null) {
+            segs[segs.length - 1].channel.close();
+            segs[segs.length - 1].channel = null;
+        }
+    }
+}
@@ -5,4 +5,10 @@ public class CommitResponse implements Serializable {
 
     public boolean accepted;
     public String comment;
+    /**
+     * The commit id an accepted commit got. The server may have moved the
+     * commit past commits decided after its base, see LchServer.rebase; 0
+     * if the server did not say.
+     */
+    public int commitId;
 }
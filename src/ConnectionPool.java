@@ -0,0 +1,261 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * Keeps one long-lived connection per peer, keyed by host:port, so that
+ * successive messages to the same peer share a socket and a MessageSocket
+ * instead of paying for a TCP handshake and new object streams every time.
+ *
+ * Messages from different threads to the same peer are multiplexed over the
+ * same connection, one at a time. A connection that turns out to be broken
+ * is dropped and re-established once before the send is given up.
+ *
+ * sendAsync queues an encoded message in a per-peer outbox that is drained
+ * on an executor, so writes to different peers proceed concurrently while
+ * the messages queued for one peer are still written in order. An outbox
+ * holds at most maxOutbox messages (lch.net.outboxFrames); when it is full
+ * the oldest message is dropped, as heartbeats and Paxos messages only get
+ * staler. Once a peer cannot be reached every message queued for it fails
+ * at once, so a peer that does not answer costs one connect timeout per
+ * attempt rather than one per message.
+ *
+ * This class is thread-safe.
+ */
+class ConnectionPool {
+    public static final int connectTimeoutMillis = 3000;
+    public static final int maxOutbox = Math.max(1, Integer.getInteger("lch.net.outboxFrames", 1024));
+
+    private final Map<String, PooledConnection> connections
+        = new HashMap<String, PooledConnection>();
+    private boolean closed = false;
+
+    /**
+     * Send a message to the given peer, connecting or reconnecting if needed.
+     */
+    public void send(String host, int port, Message message) throws IOException {
+        getConnection(host, port).send(message);
+    }
+
+    /**
+     * Queue an encoded message (see MessageSocket.encode) for the given peer
+     * and return at once. The future completes when the message has been
+     * written, or fails if it could not be.
+     */
+    public CompletableFuture<Void> sendAsync(String host, int port, byte[] frame,
+            Executor executor) {
+        try {
+            return getConnection(host, port).sendAsync(frame, executor);
+        } catch (IOException e) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private PooledConnection getConnection(String host, int port) throws IOException {
+        synchronized (connections) {
+            if (closed)
+                throw new SocketException("Connection pool is closed");
+            String key = host + ":" + port;
+            PooledConnection conn = connections.get(key);
+            if (conn == null) {
+                conn = new PooledConnection(host, port);
+                connections.put(key, conn);
+            }
+            return conn;
+        }
+    }
+
+    /**
+     * Close all pooled connections. Later sends will fail.
+     */
+    public void close() {
+        List<PooledConnection> all;
+        synchronized (connections) {
+            closed = true;
+            all = new ArrayList<PooledConnection>(connections.values());
+            connections.clear();
+        }
+        for (PooledConnection conn: all)
+            conn.close();
+    }
+
+    /**
+     * Guarded by a ReentrantLock rather than synchronized, as a send blocks on
+     * the socket and may run on a virtual thread (see Threads).
+     */
+    private static class PooledConnection {
+        private final String host;
+        private final int port;
+        private final Lock lock = new ReentrantLock();
+        private MessageSocket socket = null;
+
+        private final Queue<byte[]> outbox = new ArrayDeque<byte[]>();
+        private final Queue<CompletableFuture<Void>> outboxFutures
+            = new ArrayDeque<CompletableFuture<Void>>();
+        private boolean draining = false;
+
+        public PooledConnection(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public void send(Message message) throws IOException {
+            sendFrame(MessageSocket.encode(message));
+        }
+
+        public CompletableFuture<Void> sendAsync(byte[] frame, Executor executor) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            boolean startDrain;
+            CompletableFuture<Void> dropped = null;
+            synchronized (outbox) {
+                if (outbox.size() >= maxOutbox) {
+                    outbox.poll();
+                    dropped = outboxFutures.poll();
+                }
+                outbox.add(frame);
+                outboxFutures.add(future);
+                startDrain = !draining;
+                draining = true;
+            }
+            if (dropped != null)
+                dropped.completeExceptionally(new IOException("Outbox to " + host + ":" + port + " is full"));
+            if (startDrain) {
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            drain();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    failQueued(e, true);
+                }
+            }
+            return future;
+        }
+
+        private void drain() {
+            while (true) {
+                byte[] frame;
+                CompletableFuture<Void> future;
+                synchronized (outbox) {
+                    if (outbox.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    frame = outbox.poll();
+                    future = outboxFutures.poll();
+                }
+                try {
+                    sendFrame(frame);
+                    future.complete(null);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                    failQueued(e, false);
+                }
+            }
+        }
+
+        /**
+         * Fail the messages queued so far, as the peer just proved unreachable
+         * and each would wait for a connect to time out again. Stop draining
+         * too if stop is set.
+         */
+        private void failQueued(Exception e, boolean stop) {
+            List<CompletableFuture<Void>> failed = new ArrayList<CompletableFuture<Void>>();
+            synchronized (outbox) {
+                if (stop)
+                    draining = false;
+                outbox.clear();
+                failed.addAll(outboxFutures);
+                outboxFutures.clear();
+            }
+            for (CompletableFuture<Void> future: failed)
+                future.completeExceptionally(e);
+        }
+
+        private void sendFrame(byte[] frame) throws IOException {
+            lock.lock();
+            try {
+                if (socket != null) {
+                    try {
+                        socket.sendFrame(frame);
+                        return;
+                    } catch (IOException e) {
+                        /* The peer went away since the last send, reconnect below */
+                        disconnect();
+                    }
+                }
+                connect();
+                try {
+                    socket.sendFrame(frame);
+                } catch (IOException e) {
+                    disconnect();
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void close() {
+            lock.lock();
+            try {
+                disconnect();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                s.setTcpNoDelay(true);
+                socket = new MessageSocket(s);
+            } catch (IOException e) {
+                try {
+                    s.close();
+                } catch (IOException e2) {
+                }
+                throw e;
+            }
+            Threads.startDaemon(new Watcher(socket));
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+
+        /**
+         * The peer never writes on a pooled connection, so a read only returns
+         * when the peer has closed it. Drop the connection as soon as that
+         * happens so the next send reconnects instead of writing into a dead
+         * socket.
+         */
+        private class Watcher implements Runnable {
+            private final MessageSocket watched;
+
+            public Watcher(MessageSocket watched) {
+                this.watched = watched;
+            }
+
+            public void run() {
+                watched.awaitClose();
+                lock.lock();
+                try {
+                    if (socket == watched)
+                        disconnect();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
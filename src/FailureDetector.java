@@ -0,0 +1,140 @@
+import java.util.*;
+
+/**
+ * A phi accrual failure detector over the heartbeats NetIO receives from its
+ * peers (host:port). Instead of a yes/no answer it gives, for each peer, phi:
+ * how unlikely it is that the peer is still alive given how long it has been
+ * silent, on a logarithmic scale, judged by the intervals between its
+ * heartbeats so far. A peer is suspected once phi reaches phiThreshold
+ * (lch.fd.phiThreshold); phi 1 means a 10% chance of a wrong suspicion, 8 a
+ * chance of 10^-8 if intervals were normally distributed.
+ *
+ * Intervals that keep near perfect time would make the estimated deviation
+ * tiny and a little jitter or a short pause fatal, so the deviation is never
+ * taken below minDeviation (lch.fd.minStdDeviationMillis, by default half
+ * the heartbeat interval) and silence only counts once it exceeds
+ * acceptablePause (lch.fd.acceptablePauseMillis, by default one heartbeat
+ * interval), as if the peer had missed that much without being any less
+ * alive. With the defaults and heartbeats every 200ms a peer that stops is
+ * suspected after about a second.
+ *
+ * Peers start out with one expected interval and no suspicion. A watched
+ * peer that is never heard from becomes suspected as if it had sent a
+ * heartbeat when the watch began.
+ *
+ * This class is thread-safe.
+ */
+class FailureDetector {
+    public static final double phiThreshold = Double.parseDouble(
+            System.getProperty("lch.fd.phiThreshold", "8"));
+    /* Number of recent intervals the distribution is estimated from */
+    private static final int window = 100;
+
+    private static class History {
+        long last;
+        final ArrayDeque<Long> intervals = new ArrayDeque<Long>();
+        double sum, sumOfSquares;
+
+        void add(long interval) {
+            intervals.add(interval);
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+            if (intervals.size() > window) {
+                long old = intervals.poll();
+                sum -= old;
+                sumOfSquares -= (double) old * old;
+            }
+        }
+    }
+
+    private final long expectedInterval;
+    private final double minDeviation, acceptablePause;
+    private final Map<String, History> histories = new HashMap<String, History>();
+
+    /**
+     * expectedInterval is how often peers send heartbeats, in nanoseconds.
+     */
+    public FailureDetector(long expectedInterval) {
+        this.expectedInterval = expectedInterval;
+        long min = Long.getLong("lch.fd.minStdDeviationMillis", -1);
+        minDeviation = min < 0 ? expectedInterval / 2.0 : min * 1000000.0;
+        long pause = Long.getLong("lch.fd.acceptablePauseMillis", -1);
+        acceptablePause = pause < 0 ? expectedInterval : pause * 1000000.0;
+    }
+
+    /**
+     * Start counting the silence of peers not heard from yet from now on.
+     */
+    public synchronized void watch(Collection<String> peers, long now) {
+        for (String peer: peers) {
+            if (histories.containsKey(peer))
+                continue;
+            History h = new History();
+            h.last = now;
+            histories.put(peer, h);
+        }
+    }
+
+    public synchronized void heartbeat(String peer, long now) {
+        History h = histories.get(peer);
+        if (h == null) {
+            h = new History();
+            histories.put(peer, h);
+        } else {
+            h.add(now - h.last);
+        }
+        h.last = now;
+    }
+
+    /**
+     * 0 for peers that are neither watched nor ever heard from.
+     */
+    public synchronized double phi(String peer, long now) {
+        History h = histories.get(peer);
+        if (h == null)
+            return 0;
+        double mean = expectedInterval, deviation = expectedInterval / 4.0;
+        int n = h.intervals.size();
+        if (n > 0) {
+            mean = h.sum / n;
+            deviation = Math.sqrt(Math.max(0, h.sumOfSquares / n - mean * mean));
+        }
+        deviation = Math.max(deviation, minDeviation);
+        mean += acceptablePause;
+        /* Logistic approximation of the normal distribution */
+        double y = (now - h.last - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - h.last > mean)
+            return -Math.log10(e / (1 + e));
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+
+    public boolean isAlive(String peer) {
+        return phi(peer, System.nanoTime()) < phiThreshold;
+    }
+
+    /**
+     * peers in the same order, except that the suspected ones come last.
+     */
+    public List<String> aliveFirst(Collection<String> peers) {
+        List<String> alive = new ArrayList<String>(), suspected = new ArrayList<String>();
+        for (String peer: peers)
+            (isAlive(peer) ? alive : suspected).add(peer);
+        alive.addAll(suspected);
+        return alive;
+    }
+
+    /**
+     * The phi of every peer, for status output.
+     */
+    public synchronized String describe() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        for (String peer: new TreeSet<String>(histories.keySet())) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(peer).append(String.format(" %.1f", phi(peer, now)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Makes what a server appended to its logs durable in groups: instead of
+ * forcing the files to disk for every decided commit or acceptor vote, the
+ * callers that need their writes on disk ask for it with durable() and a
+ * single flusher thread forces the files once for all of them.
+ *
+ * Requests made while a force is under way go into the next one. With
+ * maxDelay (lch.wal.syncDelayMicros) above 0 the flusher also waits that
+ * long after the first request of a group before forcing, trading latency
+ * for fewer forces; by default it forces as soon as it is free.
+ *
+ * This class is thread-safe.
+ */
+class GroupCommit {
+    public static final long maxDelay = Long.getLong("lch.wal.syncDelayMicros", 0) * 1000;
+
+    interface Syncable {
+        void force() throws IOException;
+    }
+
+    private final List<Syncable> files;
+    private List<CompletableFuture<Void>> waiting = new ArrayList<CompletableFuture<Void>>();
+    private long firstRequest;
+    private boolean closed = false;
+    private final AtomicLong forces = new AtomicLong(0), requests = new AtomicLong(0);
+    private final Thread flusher;
+
+    public GroupCommit(List<Syncable> files) {
+        this.files = new ArrayList<Syncable>(files);
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, "group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Completes once everything written to the files before this call is on
+     * disk, on the flusher thread, or exceptionally if forcing failed.
+     */
+    public synchronized CompletableFuture<Void> durable() {
+        CompletableFuture<Void> f = new CompletableFuture<Void>();
+        if (closed) {
+            f.completeExceptionally(new IOException("Closed"));
+            return f;
+        }
+        if (waiting.isEmpty()) {
+            firstRequest = System.nanoTime();
+            notifyAll();
+        }
+        waiting.add(f);
+        requests.incrementAndGet();
+        return f;
+    }
+
+    private void flush() {
+        while (true) {
+            List<CompletableFuture<Void>> group;
+            synchronized (this) {
+                try {
+                    while (waiting.isEmpty() && !closed)
+                        wait();
+                    long wait;
+                    while (!closed && (wait = firstRequest + maxDelay - System.nanoTime()) > 0)
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (waiting.isEmpty() && closed)
+                    return;
+                group = waiting;
+                waiting = new ArrayList<CompletableFuture<Void>>();
+            }
+            IOException failure = null;
+            try {
+                for (Syncable file: files)
+                    file.force();
+            } catch (IOException e) {
+                e.printStackTrace();
+                failure = e;
+            }
+            forces.incrementAndGet();
+            for (CompletableFuture<Void> f: group) {
+                if (failure == null)
+                    f.complete(null);
+                else
+                    f.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Force what is still waiting and stop the flusher.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * How many requests the forces so far covered.
+     */
+    public String stats() {
+        long f = forces.get(), r = requests.get();
+        return "forces: " + f + ", requests: " + r
+            + String.format(", requests per force: %.1f", f == 0 ? 0.0 : (double) r / f);
+    }
+}
@@ -18,6 +18,16 @@ public class HashUtils {
 		return hashString(message, "SHA-256");
 	}
 	
+	public static String genSHA256(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return convertByteArrayToHexString(digest.digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
 	public static String genMD5(File file) {
 	    return hashFile(file, "MD5");
 	}
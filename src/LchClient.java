@@ -31,6 +31,11 @@ public class LchClient {
 	private final int port = 7000;
     private volatile NetIO net;
     private int maxNumRetry = 5;
+    // cap on how long to wait for a server, see NetIO.timeout
+    private long maxTimeout = NetIO.numNanosPerSecond * 10;
+    // servers that answered the last probe and have not failed since
+    private List<Server> liveServers = null;
+    private long probeTimeout = NetIO.numNanosPerSecond;
 	
 	private boolean updateServerList() {
 		FileReader fin;
@@ -118,16 +123,35 @@ public class LchClient {
 	}
 	
 	private Server pickRandomServer() {
-		return serverList.get(randomGen.nextInt(serverList.size()));
+		if (liveServers == null || liveServers.isEmpty())
+			probeServers();
+		List<Server> candidates = liveServers.isEmpty() ? serverList : liveServers;
+		return candidates.get(randomGen.nextInt(candidates.size()));
 	}
 	
-	public void cleanUp() {
-		net.close();
+	// ask all servers at once which are up, see NetIO.probe
+	private void probeServers() {
+		List<String> names = new ArrayList<String>();
+		for (Server server : serverList)
+			names.add(server.addr + ":" + server.port);
+		liveServers = new ArrayList<Server>();
+		for (String name : net.probe(names, probeTimeout))
+			liveServers.add(serverList.get(names.indexOf(name)));
+	}
+	
+	// stop picking a server that did not answer
+	private void markFailed(Server server) {
+		if (liveServers != null)
+			liveServers.remove(server);
 	}
 	
-	private String genRandomString() {
-		long seed = randomGen.nextLong();
-		return HashUtils.genMD5(new String(Long.toString(seed)));
+	// before a first answer to title the probe's heartbeats seed it, see RttEstimator
+	private long timeout(Server server, String title) {
+		return net.timeout(server.addr + ":" + server.port, title, maxTimeout);
+	}
+	
+	public void cleanUp() {
+		net.close();
 	}
 	
 	public class commitComparator implements Comparator<Commit> {
@@ -145,15 +169,22 @@ public class LchClient {
 		@SuppressWarnings("unchecked")
 		HashMap<String, String> copyFileDigests = (HashMap<String, String>) fileDigests.clone();
 		SyncRequest syncReq = new SyncRequest();
-		syncReq.responseTitle = genRandomString();
 		syncReq.baseCommit = version;
 		System.out.println("Client: version" + version);
 		Message msg = null;
 		int numRetry = 0;
 		while (msg == null && (numRetry++) < maxNumRetry) {
 			Server server = pickRandomServer();
-			net.sendMessage(server.addr, server.port, "SyncRequest", syncReq);
-			msg = net.receiveMessage(syncReq.responseTitle, NetIO.numNanosPerSecond * 10);
+			msg = NetIO.awaitReply(net.request(server.addr, server.port, "SyncRequest",
+						syncReq, timeout(server, "SyncRequest")));
+			if (msg == null) {
+				markFailed(server);
+			} else if (((SyncResponse) msg.content).failure != null) {
+				// Another server may still have the file contents
+				System.err.println("Server " + server.addr + ":" + server.port + " could not sync: "
+						+ ((SyncResponse) msg.content).failure);
+				msg = null;
+			}
 		}
 		if (msg == null) {
 			System.err.println("Network is unstable");
@@ -242,7 +273,8 @@ public class LchClient {
 			// if this file not exist in hashmap, conflict
 			boolean confFile = false;
 			Path path = Paths.get(filename);
-			if( !fileDigests.containsKey( filename )) {
+			// a file that is already gone, e.g. removed by our own commit, is not a conflict
+			if( !fileDigests.containsKey( filename ) && Files.exists(path) ) {
 				reportConflict( filename, 2, emptyArray );
 				confFile = true;
 			}
@@ -337,7 +369,6 @@ public class LchClient {
 	private boolean doCommit(Command cmd) {
 		//System.out.println("doCommit");
 		CommitRequest commitReq = new CommitRequest();
-		commitReq.responseTitle = genRandomString();
 		
 		// Get historical hash value from meta data file
 		HashMap<String, String> oldFileDigests = fileHashFromFile();
@@ -405,11 +436,12 @@ public class LchClient {
 		while (msg == null && (numRetry++) < maxNumRetry) {
 			Server server = pickRandomServer();
 			System.out.print("Commit#" + (version+1) + " Try to connect " + server.addr + ":" + server.port);
-			net.sendMessage(server.addr, server.port, "CommitRequest", commitReq);
-			msg = net.receiveMessage(commitReq.responseTitle, NetIO.numNanosPerSecond * 10);
-			if (msg == null)
+			msg = NetIO.awaitReply(net.request(server.addr, server.port, "CommitRequest",
+						commitReq, timeout(server, "CommitRequest")));
+			if (msg == null) {
 				System.out.println("...Failed");
-			else
+				markFailed(server);
+			} else
 				System.out.println("...Success");
 		}
 		if (msg == null) {
@@ -419,6 +451,12 @@ public class LchClient {
 		CommitResponse commitRes = (CommitResponse) msg.content;
 		if (!commitRes.accepted) {
 			System.out.println("COMMIT FAILED Comments: " + commitRes.comment);
+		} else if (commitRes.commitId > version + 1) {
+			// The server moved the commit past commits on other files,
+			// fetch those too
+			fileHashToFile();
+			System.out.println("COMMIT SUCCESS as commit#" + commitRes.commitId);
+			doSync(cmd);
 		} else {
 			version ++;
 			fileHashToFile();
@@ -1,51 +1,256 @@
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
+import java.util.function.*;
 
 public class LchServer {
-    private volatile int serverId, highestProposalNumber;
+    private volatile int serverId, highestProposalNumber, lastProposalNumber = -1;
     private volatile NetIO net;
-    private List<Commit> updateLog;
+    private UpdateLog updateLog;
+    /* The state the update log starts from, null before the first
+     * snapshot; never changed once taken. Replaced with paxosLock held, and
+     * always before the commit log drops what it covers */
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+    /* Held while a snapshot is saved and taken up, so an older one never
+     * replaces a newer one on disk; taken before paxosLock */
+    private final Object snapshotLock = new Object();
     private volatile boolean closing = false;
-    private volatile Thread syncThread, commitThread,
-            acceptorLearnerThread, updateLogRequestThread;
-    private volatile List<String> serverList;
-    private int lastPaxosDecision = -1;
-    private volatile Set<Integer> paxosLearned = new HashSet<Integer>();
+    private volatile ExecutorService requestExecutor, commitExecutor, proposalExecutor, paxosExecutor;
+    private volatile List<String> serverList, learnerList;
+    /* Whether this server is one of the read replicas in learnerList */
+    private volatile boolean readReplica;
+    /* Rounds (see round()) decided, or rejected by too many acceptors to be
+     * decided; guarded by paxosLock */
+    private final Set<Long> paxosLearned = new HashSet<Long>(), paxosRejected = new HashSet<Long>();
+    /* Decided entries waiting for the slots before them; guarded by paxosLock */
+    private final TreeMap<Integer, Commit> decidedAhead = new TreeMap<Integer, Commit>();
+    /* Values of the rounds this server proposes, by round; guarded by paxosLock */
+    private final Map<Long, List<Commit>> proposedValues = new HashMap<Long, List<Commit>>();
+    /* The highest slot a decided notice was received for whose value was not
+     * known, and whether entries are being fetched */
+    private volatile int highestDecidedSlot = -1;
+    private final AtomicBoolean fetching = new AtomicBoolean(false);
+    /* The proposal number this server leads with in Multi-Paxos mode, -1 if
+     * none; then the next slot it will propose in and the slots after that
+     * it already proposed in, guarded by leaderLock */
+    private final AtomicInteger leaderBallot = new AtomicInteger(-1);
+    private int nextLeaderSlot = 0;
+    private final Set<Integer> leaderProposed = new HashSet<Integer>();
+    /* The commits this leader proposed in slots not known to be decided,
+     * guarded by leaderLock */
+    private final TreeMap<Integer, Commit> leaderAssigned = new TreeMap<Integer, Commit>();
     private volatile String persistFile;
+    /* The update log on disk, null without a persist file; appended to with
+     * paxosLock held, read without it */
+    private volatile CommitLog commitLog;
+    /* The acceptor state on disk, null without a persist file and on read
+     * replicas; only used on the Paxos thread */
+    private volatile AcceptorLog acceptorLog;
+    /* Forces both logs to disk, null without a persist file */
+    private volatile GroupCommit groupCommit;
+    private volatile BlobStore blobs;
+    /* Commit requests whose file contents are being replicated, in order of
+     * arrival; only used on the commit thread */
+    private CompletableFuture<Void> intake = CompletableFuture.completedFuture(null);
 
     private boolean verbose = false;
 
+    /**
+     * Number of threads serving the read-only SyncRequest and UpdateLog
+     * requests concurrently. Ignored when virtual threads are used (see
+     * Threads); then every SyncRequest and UpdateLog gets a virtual thread of
+     * its own.
+     */
+    public static final int numRequestThreads = Integer.getInteger("lch.server.requestThreads", 4);
+
+    /**
+     * Number of proposals this server keeps in flight at once, each for
+     * different slots (commit ids). Commit requests are taken in order on one
+     * thread and grouped into batches (see CommitBatcher); each batch is
+     * then proposed on a thread of its own until its slots are decided.
+     * Decided entries are applied to the update log in order.
+     */
+    public static final int paxosWindow = Math.max(1, Integer.getInteger("lch.paxos.window", 1));
+
+    /**
+     * With -Dlch.multiPaxos=true one server leads: it runs the prepare phase
+     * once for all log slots from its next one on and then decides each
+     * commit with a single accept round, while the other servers forward
+     * their commit requests to it. The leader is the owner of the highest
+     * proposal number seen (see selectProposeNumber), server 0 to begin with.
+     * A server whose forwarded request goes unanswered takes over by
+     * preparing a higher proposal number.
+     */
+    public static final boolean multiPaxos = Boolean.getBoolean("lch.multiPaxos");
+
+    /**
+     * How long to wait for answers from other servers follows their round-trip
+     * times (see RttEstimator), so a dead server costs little more than a round
+     * trip. These are the caps: for forwarded commit requests, for the
+     * promises of a prepare, for an accept round to be decided, and for
+     * UpdateLog requests. Blob transfers take as long as their size needs and
+     * keep the fixed blobTimeout.
+     */
+    public static final long forwardTimeout = 5 * NetIO.numNanosPerSecond,
+            prepareTimeout = 10 * NetIO.numNanosPerSecond,
+            acceptTimeout = 30 * NetIO.numNanosPerSecond,
+            updateLogTimeout = 5 * NetIO.numNanosPerSecond;
+
+    /**
+     * With -Dlch.paxos.distinguishedLearner=true acceptors send their votes
+     * only to the proposer, without the values. Once a quorum (see q2) accepted,
+     * the proposer tells every server with a small Decided notice; a server
+     * that did not accept the value itself fetches the entries it misses.
+     * Otherwise every acceptor sends its vote, value included, to every
+     * server.
+     */
+    public static final boolean distinguishedLearner = Boolean.getBoolean("lch.paxos.distinguishedLearner");
+
+    /**
+     * How long the server that receives a commit waits for a majority of
+     * servers to store its file contents before it gives up on the commit.
+     */
+    public static final long blobTimeout = 30 * NetIO.numNanosPerSecond;
+
+    /**
+     * Number of promises a prepare needs (-Dlch.paxos.q1) and number of
+     * accept votes that decide a value (-Dlch.paxos.q2). Any phase-1 quorum
+     * has to overlap any phase-2 quorum, so q1 + q2 must exceed the number of
+     * servers; both default to a majority. A smaller q2 makes every commit
+     * cheaper at the price of a larger q1 when the leadership changes.
+     */
+    public static final int phase1Quorum = Integer.getInteger("lch.paxos.q1", 0),
+            phase2Quorum = Integer.getInteger("lch.paxos.q2", 0);
+
+    /**
+     * With -Dlch.paxos.thrifty=true accept requests go only to the q2
+     * acceptors that have been answering fastest (see RttEstimator). If the
+     * value is not decided within thriftyTimeout, or three times the slowest
+     * of their estimates if that is longer, the request goes to the others
+     * as well.
+     */
+    public static final boolean thrifty = Boolean.getBoolean("lch.paxos.thrifty");
+    public static final long thriftyTimeout = 50 * NetIO.numNanosPerSecond / 1000;
+
+    /**
+     * Without Multi-Paxos every server proposes its own commits, so servers
+     * receiving commits at the same time duel. A proposal that lost to a
+     * higher-numbered round or timed out is tried again, after a random wait
+     * of up to backoffBase * 2^attempt but no more than backoffCap, for as
+     * long as its slots are undecided but at most acceptTimeout: its value
+     * may have been accepted already, so giving up earlier could tell the
+     * client a commit failed that still gets decided. With
+     * -Dlch.paxos.redirect=true it is instead handed to the server that owns
+     * the highest proposal number seen, which is winning.
+     */
+    public static final long backoffBase = Integer.getInteger("lch.paxos.backoffMicros", 5000) * 1000L;
+    public static final long backoffCap = NetIO.numNanosPerSecond;
+    public static final boolean redirect = Boolean.getBoolean("lch.paxos.redirect");
+
+    /**
+     * Read replicas (-Dlch.learners=host:port,...) learn every decided commit
+     * and serve SyncRequest and UpdateLog requests like the other servers,
+     * but never vote: they count towards no quorum, so adding one adds read
+     * capacity without slowing commits down. Every server must be given the
+     * same list. A read replica's serverId is its index in the server list
+     * followed by this list; it forwards the commit requests it receives to
+     * a voting server.
+     */
+    public static final List<String> learners = parseList(System.getProperty("lch.learners", ""));
+
+    /**
+     * Once the update log holds twice lch.snapshot.interval commits after the
+     * last snapshot, the commits except the last interval of them are folded
+     * into a new snapshot (see Snapshot), saved next to the persist file,
+     * and dropped from memory and from the commit log. Servers and clients
+     * behind the snapshot get it instead of the commits. 0 turns snapshots
+     * off.
+     */
+    public static final int snapshotInterval = Integer.getInteger("lch.snapshot.interval", 10000);
+
     final Lock paxosLock = new ReentrantLock();
     final Condition paxosCondition = paxosLock.newCondition();
+    /* Held by the leader while it takes the leadership and assigns a slot */
+    private final Lock leaderLock = new ReentrantLock();
+    private final Semaphore window = new Semaphore(paxosWindow);
+    private volatile CommitBatcher batcher;
+    private volatile int q1, q2;
+    /* Index in serverList by host:port, with the host both as given and resolved */
+    private final Map<String, Integer> peerIndex = new HashMap<String, Integer>();
+    /* When this server sent the accept requests of its rounds; guarded by paxosLock */
+    private final Map<Long, Long> proposedAt = new HashMap<Long, Long>();
+    /* Proposal rounds started, lost to a higher round, and redirected; commit
+     * requests moved onto the head of the log, and rejected before any round
+     * as they conflict with commits after their base */
+    private final AtomicLong roundsStarted = new AtomicLong(0), roundsLost = new AtomicLong(0),
+            redirected = new AtomicLong(0), rebased = new AtomicLong(0),
+            staleRejected = new AtomicLong(0);
 
     // serverList should include the address:port of the local server
     public LchServer(int port, int serverId, List<String> serverList, boolean catchupMode, String persistFile) {
+        this(port, serverId, serverList, learners, catchupMode, persistFile);
+    }
+
+    /**
+     * serverList holds the voting servers and learnerList the read replicas
+     * (see learners); serverId indexes serverList followed by learnerList.
+     */
+    public LchServer(int port, int serverId, List<String> serverList, List<String> learnerList,
+            boolean catchupMode, String persistFile) {
         this.serverId = serverId;
         this.serverList = serverList;
+        this.learnerList = learnerList;
+        readReplica = serverId >= serverList.size();
         this.persistFile = persistFile;
         highestProposalNumber = 0;
+        int n = serverList.size();
+        q1 = phase1Quorum > 0 ? phase1Quorum : n / 2 + 1;
+        q2 = phase2Quorum > 0 ? phase2Quorum : n / 2 + 1;
+        if (q1 > n || q2 > n || q1 + q2 <= n)
+            throw new IllegalArgumentException("Paxos quorums " + q1 + " and " + q2
+                    + " do not intersect for " + n + " servers");
+        for (int i = 0; i < n; ++i) {
+            String[] hostPort = serverList.get(i).split(":");
+            peerIndex.put(serverList.get(i), i);
+            try {
+                peerIndex.put(java.net.InetAddress.getByName(hostPort[0]).getHostAddress()
+                        + ":" + hostPort[1], i);
+            } catch (IOException e) {
+            }
+        }
         net = new NetIO(port);
-        updateLog = new ArrayList<Commit>();
+        net.startHeartbeats(self(), serverList);
+        updateLog = new UpdateLog(0);
+        blobs = new BlobStore(persistFile == null ? null : new File(persistFile + ".blobs"));
         restoreState();
         if (catchupMode)
             catchUp();
-        for (int i = 0; i < updateLog.size(); ++i)
+        for (int i = updateLog.first(); i < updateLog.size(); ++i)
             if (updateLog.get(i).commitId != i) {
                 System.err.println("Inconsistent update log!");
                 close();
                 throw new RuntimeException("Inconsistent update log");
             }
-        System.out.println("Latest commit is " + updateLog.get(updateLog.size() - 1).commitId);
+        System.out.println("Latest commit is " + updateLog.lastCommitId());
 
-        syncThread = new Thread(new SyncHandler());
-        commitThread = new Thread(new CommitHandler());
-        acceptorLearnerThread = new Thread(new AcceptorLearner(false));
-        updateLogRequestThread = new Thread(new UpdateLogRequestHandler());
-        syncThread.start();
-        commitThread.start();
-        acceptorLearnerThread.start();
-        updateLogRequestThread.start();
+        if (Threads.useVirtualThreads)
+            requestExecutor = Threads.newPerTaskExecutor();
+        else
+            requestExecutor = Executors.newFixedThreadPool(numRequestThreads);
+        commitExecutor = Executors.newSingleThreadExecutor(Threads.factory());
+        proposalExecutor = Threads.newPerTaskExecutor();
+        batcher = new CommitBatcher(new BatchProposer(), commitExecutor);
+        paxosExecutor = Executors.newSingleThreadExecutor(Threads.factory());
+        net.registerHandler("SyncRequest", new SyncHandler(), requestExecutor);
+        net.registerHandler("UpdateLog", new UpdateLogRequestHandler(), requestExecutor);
+        net.registerHandler("PutBlobs", new PutBlobsHandler(), requestExecutor);
+        net.registerHandler("GetBlobs", new GetBlobsHandler(), requestExecutor);
+        net.registerHandler("CommitRequest", new CommitHandler(false), commitExecutor);
+        net.registerHandler("ForwardedCommit", new CommitHandler(true), commitExecutor);
+        net.registerHandler("Paxos", new AcceptorLearner(false), paxosExecutor);
     }
 
     public static final void main(String[] args) {
@@ -56,9 +261,7 @@ public class LchServer {
 
         int port = Integer.parseInt(args[0]);
         int serverId = Integer.parseInt(args[1]);
-        List<String> serverList = new ArrayList<String>();
-        for (String s: args[2].split(","))
-            serverList.add(s);
+        List<String> serverList = parseList(args[2]);
         boolean catchupMode = true;
         if (args.length >= 4 && args[3].equals("n"))
             catchupMode = false;
@@ -70,6 +273,9 @@ public class LchServer {
         Scanner scan = new Scanner(System.in);
         System.out.println("Server started on port " + port);
         System.out.println("Serverlist contains " + serverList.size() + " entries");
+        if (!learners.isEmpty())
+            System.out.println("Read replicas: " + learners.size()
+                    + (serverId >= serverList.size() ? ", this is one of them" : ""));
         while (true) {
             System.out.flush();
             String s = scan.nextLine();
@@ -78,46 +284,163 @@ public class LchServer {
                 break;
             } else if (s.equals("status")) {
                 System.out.println("Latest commit is " + server.latestCommitId());
+                for (Map.Entry<String, Mailbox.Stats> e: server.mailboxStats().entrySet())
+                    System.out.println("Mailbox " + e.getKey() + ": " + e.getValue());
+                System.out.println("Retired mailboxes: " + server.retiredMailboxStats());
+                System.out.println("Commit batches: " + server.batchStats());
+                System.out.println("Proposals: " + server.contentionStats());
+                System.out.println("Failure detector phi: " + server.liveness());
+                System.out.println("Group commit: " + server.durabilityStats());
+                System.out.println("Snapshot: " + server.snapshotStats());
+                System.out.println("Blob cache: " + server.blobStats());
             }
         }
     }
 
+    private static List<String> parseList(String s) {
+        List<String> ret = new ArrayList<String>();
+        for (String item: s.split(","))
+            if (!item.isEmpty())
+                ret.add(item);
+        return ret;
+    }
+
+    /**
+     * The host:port of this server.
+     */
+    private String self() {
+        if (readReplica)
+            return learnerList.get(serverId - serverList.size());
+        return serverList.get(serverId);
+    }
+
+    /**
+     * Every server that learns decided values: the voting servers and the
+     * read replicas.
+     */
+    private List<String> allLearners() {
+        if (learnerList.isEmpty())
+            return serverList;
+        List<String> ret = new ArrayList<String>(serverList);
+        ret.addAll(learnerList);
+        return ret;
+    }
+
+    /**
+     * Load the update log from the latest snapshot and the commit log after
+     * it (see CommitLog). A server that has neither yet but a persist file in
+     * the format written before takes its update log from there and starts
+     * the commit log with it.
+     */
     @SuppressWarnings("unchecked")
     private void restoreState() {
         paxosLock.lock();
         try {
-            updateLog.add(new Commit());
-            if (persistFile != null) {
-                FileInputStream in = new FileInputStream(persistFile);
-                ObjectInputStream oin = new ObjectInputStream(in);
-                updateLog = (List<Commit>) oin.readObject();
-
-                oin.close();
+            if (persistFile == null) {
+                updateLog.add(new Commit());
+                return;
+            }
+            commitLog = new CommitLog(new File(persistFile + ".wal"));
+            List<GroupCommit.Syncable> files = new ArrayList<GroupCommit.Syncable>();
+            files.add(commitLog);
+            /* File contents are only promised to a proposer once on disk */
+            files.add(blobs);
+            if (!readReplica) {
+                acceptorLog = new AcceptorLog(new File(persistFile + ".acceptor"));
+                files.add(acceptorLog);
+            }
+            groupCommit = new GroupCommit(files);
+            snapshot = Snapshot.load(new File(persistFile + ".snapshot"));
+            List<Commit> commits = commitLog.recover();
+            if (snapshot != null) {
+                updateLog = new UpdateLog(snapshot.commitId + 1);
+                for (Commit c: commits)
+                    if (c.commitId == updateLog.size())
+                        updateLog.add(withHashes(c));
+                /* Only if the log ends before the snapshot, or a crash came
+                 * between taking up another server's snapshot and restarting
+                 * the log */
+                if (commitLog.next() != updateLog.size())
+                    commitLog.restartAt(updateLog.size());
+            } else if (!commits.isEmpty() && commits.get(0).commitId == 0) {
+                for (Commit c: commits)
+                    updateLog.add(withHashes(c));
+            } else if (commits.isEmpty() && new File(persistFile).exists()) {
+                ObjectInputStream oin = new ObjectInputStream(new FileInputStream(persistFile));
+                try {
+                    for (Commit c: (List<Commit>) oin.readObject())
+                        updateLog.add(withHashes(c));
+                } finally {
+                    oin.close();
+                }
+                logDecided();
+            } else {
+                updateLog.add(new Commit());
+                logDecided();
             }
-        } catch (FileNotFoundException e) {
         } catch (IOException e) {
+            e.printStackTrace();
         } catch (ClassNotFoundException e) {
+            e.printStackTrace();
         } finally {
             paxosLock.unlock();
         }
     }
 
-    private void saveState() {
-        paxosLock.lock();
+    /**
+     * Append the entries of the update log that the commit log lacks, up to
+     * the first one that is not in its slot, and have them forced to disk
+     * with the next group (see GroupCommit). Called with paxosLock held.
+     */
+    private void logDecided() {
+        if (commitLog == null)
+            return;
+        int appended = 0;
         try {
-            if (persistFile != null) {
-                FileOutputStream out = new FileOutputStream(persistFile);
-                ObjectOutputStream oout = new ObjectOutputStream(out);
-
-                oout.writeObject(updateLog);
-                oout.flush();
-                oout.close();
-            }
-        } catch (FileNotFoundException e) {
+            for (int i = Math.max(updateLog.first(), commitLog.next());
+                    i < updateLog.size() && updateLog.get(i).commitId == i; ++i, ++appended)
+                commitLog.append(updateLog.get(i));
         } catch (IOException e) {
-        } finally {
-            paxosLock.unlock();
+            e.printStackTrace();
         }
+        if (appended > 0)
+            groupCommit.durable();
+    }
+
+    /**
+     * Run action once everything appended to the commit log and the
+     * acceptor log and every file content stored so far is on disk, at once
+     * without a persist file. The
+     * action is dropped if the logs could not be forced: the answer it would
+     * send could promise more than this server can keep.
+     */
+    private void whenDurable(final Runnable action) {
+        if (groupCommit == null) {
+            action.run();
+            return;
+        }
+        groupCommit.durable().whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void v, Throwable failure) {
+                if (failure == null)
+                    action.run();
+                else
+                    System.err.println("Not answering, the logs could not be forced: " + failure);
+            }
+        });
+    }
+
+    /**
+     * Counters of the forces of the logs, see GroupCommit.
+     */
+    public String durabilityStats() {
+        return groupCommit == null ? "not persistent" : groupCommit.stats();
+    }
+
+    /**
+     * Counters of the file contents in memory, see BlobStore.
+     */
+    public String blobStats() {
+        return blobs.stats();
     }
 
     public int latestCommitId() {
@@ -131,43 +454,161 @@ public class LchServer {
         return ret;
     }
 
+    public Map<String, Mailbox.Stats> mailboxStats() {
+        return net.mailboxStats();
+    }
+
+    public Mailbox.Stats retiredMailboxStats() {
+        return net.retiredMailboxStats();
+    }
+
+    public CommitBatcher.Stats batchStats() {
+        return batcher.stats();
+    }
+
     public void close() {
         closing = true;
         try {
-            syncThread.join();
-            commitThread.join();
-            acceptorLearnerThread.join();
-            updateLogRequestThread.join();
+            for (ExecutorService executor: new ExecutorService[] {
+                    requestExecutor, commitExecutor, proposalExecutor, paxosExecutor})
+                if (executor != null)
+                    executor.shutdown();
+            for (ExecutorService executor: new ExecutorService[] {
+                    requestExecutor, commitExecutor, proposalExecutor, paxosExecutor})
+                if (executor != null)
+                    executor.awaitTermination(60, TimeUnit.SECONDS);
             net.close();
         } catch (InterruptedException e) {
         }
+        if (groupCommit != null)
+            groupCommit.close();
+        paxosLock.lock();
+        try {
+            if (commitLog != null)
+                commitLog.close();
+            if (acceptorLog != null)
+                acceptorLog.close();
+        } catch (IOException e) {
+        } finally {
+            paxosLock.unlock();
+        }
     }
 
-    private void mergeCommits(List<Commit> commits1, List<Commit> commits2) {
-        for (Commit c: commits2) {
-            if (commits1.get(commits1.size() - 1).commitId < c.commitId) {
-                commits1.add(c);
-                continue;
-            }
-            for (int i = 0; i < commits1.size(); ++i) {
-                if (commits1.get(i).commitId == c.commitId) {
-                    commits1.set(i, c);
-                    break;
-                } else if (commits1.get(i).commitId > c.commitId) {
-                    commits1.add(i, c);
-                    break;
+    /**
+     * Fold the commits after the last snapshot, except for the last
+     * snapshotInterval of them, into a new snapshot once there are twice
+     * that many, on a request thread. Called with paxosLock held.
+     */
+    private void maybeSnapshot() {
+        final Snapshot last = snapshot, from = last == null ? new Snapshot() : last;
+        final int target = updateLog.size() - 1 - snapshotInterval;
+        if (snapshotInterval <= 0 || requestExecutor == null || target - from.commitId < snapshotInterval
+                || updateLog.first() > from.commitId + 1 || !snapshotting.compareAndSet(false, true))
+            return;
+        final List<Commit> commits = updateLog.range(from.commitId + 1, target - from.commitId);
+        try {
+            requestExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Snapshot s = new Snapshot(from);
+                        for (Commit c: commits)
+                            s.apply(c, blobs);
+                        synchronized (snapshotLock) {
+                            if (currentSnapshot() != last)
+                                return;
+                            if (persistFile != null)
+                                s.save(new File(persistFile + ".snapshot"));
+                            paxosLock.lock();
+                            try {
+                                snapshot = s;
+                                updateLog.truncateBefore(s.commitId + 1);
+                                if (commitLog != null)
+                                    commitLog.dropBefore(s.commitId + 1);
+                            } finally {
+                                paxosLock.unlock();
+                            }
+                        }
+                        logPaxos("Snapshot taken at commit " + s.commitId);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        snapshotting.set(false);
+                    }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            snapshotting.set(false);
+        }
+    }
+
+    /**
+     * Take up a snapshot another server sent as this one is behind the
+     * start of its update log, dropping the whole update log.
+     */
+    private void installSnapshot(Snapshot s) {
+        synchronized (snapshotLock) {
+            if (s.commitId < nextSlot())
+                return;
+            try {
+                if (persistFile != null)
+                    s.save(new File(persistFile + ".snapshot"));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
             }
+            paxosLock.lock();
+            try {
+                if (s.commitId < updateLog.size())
+                    return;
+                System.out.println("Taking up a snapshot at commit " + s.commitId);
+                snapshot = s;
+                updateLog = new UpdateLog(s.commitId + 1);
+                if (commitLog != null)
+                    commitLog.restartAt(s.commitId + 1);
+                applyDecided();
+                logDecided();
+                paxosCondition.signalAll();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                paxosLock.unlock();
+            }
+        }
+    }
+
+    private Snapshot currentSnapshot() {
+        paxosLock.lock();
+        try {
+            return snapshot;
+        } finally {
+            paxosLock.unlock();
+        }
+    }
+
+    public String snapshotStats() {
+        paxosLock.lock();
+        try {
+            return (snapshot == null ? "none" : "at commit " + snapshot.commitId)
+                + ", update log holds " + (updateLog.size() - updateLog.first()) + " commits";
+        } finally {
+            paxosLock.unlock();
         }
     }
 
     private boolean catchUpdateLog() {
-        for (String s: serverList) {
+        for (String s: net.failureDetector().aliveFirst(serverList)) {
+            if (s.equals(self()))
+                continue;
             UpdateLogRequest req = new UpdateLogRequest();
-            req.responseTitle = randomTitle();
             req.baseCommit = updateLog.size() - 1;
-            net.sendMessage(s, "UpdateLog", req);
-            Message ret = net.receiveMessage(req.responseTitle, 5 * NetIO.numNanosPerSecond);
+            Message ret = NetIO.awaitReply(
+                    net.request(s, "UpdateLog", req, net.timeout(s, "UpdateLog", updateLogTimeout)));
+            if (ret != null && ret.content instanceof Snapshot) {
+                installSnapshot((Snapshot) ret.content);
+                req.baseCommit = nextSlot() - 1;
+                ret = NetIO.awaitReply(
+                        net.request(s, "UpdateLog", req, net.timeout(s, "UpdateLog", updateLogTimeout)));
+            }
             if (ret == null)
                 continue;
             if (!(ret.content instanceof ArrayList))
@@ -180,7 +621,9 @@ public class LchServer {
             }
             paxosLock.lock();
             try {
-                mergeCommits(updateLog, commits);
+                for (Commit c: commits)
+                    updateLog.merge(c);
+                logDecided();
             } finally {
                 paxosLock.unlock();
             }
@@ -202,8 +645,8 @@ public class LchServer {
         System.out.println("Step 3 finished");
         paxosLock.lock();
         try {
-            if (updateLog.size() >= 2 && updateLog.get(updateLog.size() - 1).commitId > updateLog.get(updateLog.size() - 2).commitId + 1) {
-                updateLog.remove(updateLog.size() - 1);
+            if (updateLog.size() - 2 >= updateLog.first() && updateLog.get(updateLog.size() - 1).commitId > updateLog.get(updateLog.size() - 2).commitId + 1) {
+                updateLog.removeLast();
                 System.out.println("Removed redundant update log");
             }
         } finally {
@@ -211,26 +654,48 @@ public class LchServer {
         }
     }
 
-    private class UpdateLogRequestHandler implements Runnable {
-        public void run() {
-            while (!closing) {
-                Message msg = net.receiveMessage("UpdateLog", 2 * NetIO.numNanosPerSecond);
-                if (msg == null)
-                    continue;
-                if (!(msg.content instanceof UpdateLogRequest))
-                    continue;
+    /**
+     * The decided commits from commit id from on, read from the commit log
+     * without paxosLock; null without a persist file, or if the commit log
+     * does not hold from as a snapshot covers it.
+     */
+    private ArrayList<Commit> loggedRange(int from) {
+        CommitLog log = commitLog;
+        if (log == null)
+            return null;
+        try {
+            return log.range(from, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-                UpdateLogRequest req = (UpdateLogRequest) msg.content;
+    private class UpdateLogRequestHandler implements MessageHandler {
+        public void handle(Message msg) {
+            if (!(msg.content instanceof UpdateLogRequest))
+                return;
+
+            UpdateLogRequest req = (UpdateLogRequest) msg.content;
+            Serializable response = loggedRange(req.baseCommit + 1);
+            if (response == null) {
+                Snapshot s = snapshot;
+                /* Commits that were compacted are sent as the snapshot */
+                if (s != null && req.baseCommit < s.commitId && commitLog != null)
+                    response = s;
+            }
+            if (response == null) {
                 paxosLock.lock();
                 try {
-                    ArrayList<Commit> response = new ArrayList<Commit>();
-                    for (int i = Math.max(0, req.baseCommit + 1); i < updateLog.size(); ++i)
-                        response.add(updateLog.get(i));
-                    net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, response);
+                    if (req.baseCommit + 1 < updateLog.first() && snapshot != null)
+                        response = snapshot;
+                    else
+                        response = updateLog.range(req.baseCommit + 1, Integer.MAX_VALUE);
                 } finally {
                     paxosLock.unlock();
                 }
             }
+            net.reply(msg, req.responseTitle, response);
         }
     }
     
@@ -239,46 +704,373 @@ public class LchServer {
             System.out.println(s);
     }
 
-    private static class UpdateLogRequest implements Serializable {
-        static final long serialVersionUID = 8306525401762584161L;
+    private class SyncHandler implements MessageHandler {
+        public void handle(Message msg) {
+            if (!(msg.content instanceof SyncRequest)) {
+                System.err.println("Discarded a malformed sync request");
+                return;
+            }
+            SyncRequest req = (SyncRequest) msg.content;
+            int baseCommit = Math.max(0, req.baseCommit);
+
+            System.out.println("Received a sync request: " + req.toString());
 
-        public String responseTitle;
-        int baseCommit;
+            List<Commit> commits = loggedRange(baseCommit + 1);
+            Snapshot s = null;
+            if (commits == null) {
+                s = snapshot;
+                if (s != null && baseCommit < s.commitId)
+                    commits = loggedRange(s.commitId + 1);
+            }
+            if (commits == null) {
+                s = null;
+                paxosLock.lock();
+                try {
+                    if (baseCommit + 1 < updateLog.first())
+                        s = snapshot;
+                    commits = updateLog.range(baseCommit + 1, Integer.MAX_VALUE);
+                } finally {
+                    paxosLock.unlock();
+                }
+            }
+            /* The commits that were compacted, merged into one */
+            if (s != null)
+                commits.add(0, s.since(baseCommit));
+            /* Clients get the file contents, not their hashes */
+            SyncResponse response = new SyncResponse();
+            response.commits = new ArrayList<Commit>();
+            for (Commit c: commits) {
+                Commit withContents = withContents(c);
+                if (withContents == null) {
+                    System.err.println("File contents of commit " + c.commitId + " are not available");
+                    response.commits.clear();
+                    response.failure = "File contents of commit " + c.commitId + " are not available";
+                    break;
+                }
+                response.commits.add(withContents);
+            }
+            System.out.println("returned " + response.commits.size() + " updates");
+            net.reply(msg, req.responseTitle, response);
+        }
     }
 
-    private class SyncHandler implements Runnable {
-        public void run() {
-            while (!closing) {
-                Message msg = net.receiveMessage("SyncRequest", 2 * NetIO.numNanosPerSecond);
-                if (msg == null)
-                    continue;
-                if (!(msg.content instanceof SyncRequest)) {
-                    System.err.println("Discarded a malformed sync request");
-                    continue;
+    /**
+     * Stores the file contents another server received with a commit. Replies
+     * true once all of them are stored, and on disk with a persist file.
+     */
+    private class PutBlobsHandler implements MessageHandler {
+        public void handle(Message msg) {
+            if (!(msg.content instanceof HashMap))
+                return;
+            @SuppressWarnings("unchecked")
+            Map<String, byte[]> contents = (Map<String, byte[]>) msg.content;
+            boolean stored = true;
+            for (Map.Entry<String, byte[]> e: contents.entrySet())
+                stored &= blobs.put(e.getKey(), e.getValue());
+            if (!stored) {
+                net.reply(msg, null, false);
+                return;
+            }
+            whenDurable(new Runnable() {
+                public void run() {
+                    net.reply(msg, null, true);
                 }
-                SyncRequest req = (SyncRequest) msg.content;
-                req.baseCommit = Math.max(0, req.baseCommit);
+            });
+        }
+    }
 
-                System.out.println("Received a sync request: " + req.toString());
+    /**
+     * Replies with those of the requested file contents this server has.
+     */
+    private class GetBlobsHandler implements MessageHandler {
+        public void handle(Message msg) {
+            if (!(msg.content instanceof ArrayList))
+                return;
+            HashMap<String, byte[]> contents = new HashMap<String, byte[]>();
+            for (Object hash: (List<?>) msg.content) {
+                byte[] content = hash instanceof String ? blobs.get((String) hash) : null;
+                if (content != null)
+                    contents.put((String) hash, content);
+            }
+            net.reply(msg, null, contents);
+        }
+    }
 
-                SyncResponse response = new SyncResponse();
-                response.commits = new ArrayList<Commit>();
-                paxosLock.lock();
-                try {
-                    int cnt = 0;
-                    for (int i = req.baseCommit + 1; i < updateLog.size(); ++i) {
-                        response.commits.add(updateLog.get(i));
-                        ++cnt;
+    /**
+     * A copy of req whose commit refers to its files by hash, after storing
+     * their contents here and adding them to contents by hash.
+     */
+    private CommitRequest withoutContents(CommitRequest req, Map<String, byte[]> contents) {
+        Commit commit = req.proposedCommit;
+        if (commit.changedFiles.isEmpty())
+            return req;
+        Commit stripped = copyMetadata(commit);
+        stripped.changedFileHashes.putAll(commit.changedFileHashes);
+        for (Map.Entry<String, byte[]> e: commit.changedFiles.entrySet()) {
+            String hash = blobs.put(e.getValue());
+            stripped.changedFileHashes.put(e.getKey(), hash);
+            contents.put(hash, e.getValue());
+        }
+        CommitRequest ret = new CommitRequest();
+        ret.responseTitle = req.responseTitle;
+        ret.baseCommit = req.baseCommit;
+        ret.proposedCommit = stripped;
+        return ret;
+    }
+
+    /**
+     * A copy of commit that refers to its files by hash, after storing their
+     * contents here, for commits kept in the update log by versions that
+     * kept the contents there too.
+     */
+    private Commit withHashes(Commit commit) {
+        if (commit.changedFiles.isEmpty())
+            return commit;
+        Commit ret = copyMetadata(commit);
+        ret.changedFileHashes.putAll(commit.changedFileHashes);
+        for (Map.Entry<String, byte[]> e: commit.changedFiles.entrySet())
+            ret.changedFileHashes.put(e.getKey(), blobs.put(e.getValue()));
+        return ret;
+    }
+
+    /**
+     * A copy of commit with the contents of its files instead of their
+     * hashes, fetching contents this server lacks from the others. Returns
+     * null if some could not be found.
+     */
+    private Commit withContents(Commit commit) {
+        if (commit.changedFileHashes.isEmpty())
+            return commit;
+        Map<String, byte[]> found = new HashMap<String, byte[]>();
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String hash: commit.changedFileHashes.values()) {
+            byte[] content = blobs.get(hash);
+            if (content != null)
+                found.put(hash, content);
+            else
+                missing.add(hash);
+        }
+        for (int i = 0; i < serverList.size() && !missing.isEmpty(); ++i) {
+            if (i == serverId)
+                continue;
+            Message ret = NetIO.awaitReply(
+                    net.request(serverList.get(i), "GetBlobs", missing, blobTimeout));
+            if (ret == null || !(ret.content instanceof HashMap))
+                continue;
+            @SuppressWarnings("unchecked")
+            Map<String, byte[]> contents = (Map<String, byte[]>) ret.content;
+            for (Map.Entry<String, byte[]> e: contents.entrySet()) {
+                if (missing.contains(e.getKey()) && blobs.put(e.getKey(), e.getValue())) {
+                    found.put(e.getKey(), e.getValue());
+                    missing.remove(e.getKey());
+                }
+            }
+        }
+        if (!missing.isEmpty())
+            return null;
+        Commit ret = copyMetadata(commit);
+        ret.changedFiles.putAll(commit.changedFiles);
+        for (Map.Entry<String, String> e: commit.changedFileHashes.entrySet())
+            ret.changedFiles.put(e.getKey(), found.get(e.getValue()));
+        return ret;
+    }
+
+    /**
+     * Check a commit request against the commits decided after its base.
+     * If none of them changed or removed a path the commit changes or
+     * removes, the client's base and the head of the log only differ in
+     * files the commit does not touch, so it is returned moved onto the
+     * head: as a copy with the base and commit id renumbered. Returns null
+     * if it conflicts with one of them, and the request itself if it is not
+     * behind the log of this server or already decided in its slot (a
+     * redirected request may have won through another proposer).
+     */
+    private CommitRequest rebase(CommitRequest req) {
+        Commit commit = req.proposedCommit;
+        int head;
+        paxosLock.lock();
+        try {
+            head = updateLog.size() - 1;
+            if (req.baseCommit < 0 || req.baseCommit >= head || commit.commitId != req.baseCommit + 1
+                    || commit.equals(updateLog.get(commit.commitId)))
+                return req;
+            if (touchedSince(req.baseCommit, commit))
+                return null;
+        } finally {
+            paxosLock.unlock();
+        }
+        return moveOnto(req, head);
+    }
+
+    /**
+     * A copy of req with its commit renumbered to follow head.
+     */
+    private CommitRequest moveOnto(CommitRequest req, int head) {
+        Commit commit = req.proposedCommit;
+        rebased.incrementAndGet();
+        logPaxos("Rebasing commit " + commit.commitId + " onto " + head);
+        Commit moved = copyMetadata(commit);
+        moved.changedFiles.putAll(commit.changedFiles);
+        moved.changedFileHashes.putAll(commit.changedFileHashes);
+        moved.commitId = head + 1;
+        /* It was checked against the commits after its first base */
+        if (commit.base < 0)
+            moved.base = req.baseCommit;
+        CommitRequest ret = new CommitRequest();
+        ret.responseTitle = req.responseTitle;
+        ret.baseCommit = head;
+        ret.proposedCommit = moved;
+        return ret;
+    }
+
+    private static Set<String> touchedPaths(Commit commit) {
+        Set<String> ret = new HashSet<String>(commit.removedFiles);
+        ret.addAll(commit.changedFiles.keySet());
+        ret.addAll(commit.changedFileHashes.keySet());
+        return ret;
+    }
+
+    /**
+     * Give a commit whose round did not decide its slot for it, or that
+     * conflicted with a batch (see CommitBatcher), a second chance. While
+     * its slot is undecided it is proposed there again, as it may have been
+     * accepted there already, unless a commit decided after its base touches
+     * its paths. Once its slot went to another commit it is rebased (see
+     * rebase) and proposed in the next slot. Otherwise it is answered. A
+     * value accepted in an earlier round may have got it decided meanwhile,
+     * which counts as accepted.
+     */
+    private void readmit(final CommitBatcher.Pending p) {
+        try {
+            commitExecutor.execute(new Runnable() {
+                public void run() {
+                    Commit decided = decidedChange(p.original);
+                    if (decided != null) {
+                        CommitRequest done = new CommitRequest();
+                        done.responseTitle = p.original.responseTitle;
+                        done.baseCommit = decided.commitId - 1;
+                        done.proposedCommit = decided;
+                        respond(p.msg, done, null);
+                        return;
                     }
-                    System.out.println("returned " + cnt + " updates");
-                } finally {
-                    paxosLock.unlock();
+                    if (p.req.proposedCommit.commitId >= nextSlot()) {
+                        if (touchedSince(p.original.baseCommit, p.req.proposedCommit))
+                            respond(p.msg, p.req, null);
+                        else
+                            batcher.add(p);
+                        return;
+                    }
+                    CommitRequest req = rebase(p.original);
+                    if (req == null || (req == p.original && req.proposedCommit.commitId < nextSlot())) {
+                        if (req == null)
+                            staleRejected.incrementAndGet();
+                        respond(p.msg, p.original, null);
+                        return;
+                    }
+                    batcher.add(new CommitBatcher.Pending(p, req));
                 }
-                net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, response);
+            });
+        } catch (RejectedExecutionException e) {
+        }
+    }
+
+    /**
+     * The commit decided after the base of req that makes the same change
+     * as the commit of req, in whatever slot, or null if there is none.
+     */
+    private Commit decidedChange(CommitRequest req) {
+        paxosLock.lock();
+        try {
+            for (int i = Math.max(updateLog.first(), req.baseCommit + 1); i < updateLog.size(); ++i)
+                if (sameChange(updateLog.get(i), req.proposedCommit))
+                    return updateLog.get(i);
+            return null;
+        } finally {
+            paxosLock.unlock();
+        }
+    }
+
+    /**
+     * Whether a commit decided after base touches a path commit touches.
+     * For compacted commits the snapshot tells, so every server gives the
+     * same answer (see effect).
+     */
+    private boolean touchedSince(int base, Commit commit) {
+        Set<String> paths = touchedPaths(commit);
+        paxosLock.lock();
+        try {
+            int from = base + 1;
+            if (from < updateLog.first()) {
+                Snapshot s = snapshot;
+                if (s == null || s.commitId + 1 != updateLog.first())
+                    return true;
+                for (String path: touchedPaths(s.since(base)))
+                    if (paths.contains(path))
+                        return true;
+                from = updateLog.first();
             }
+            for (int i = from; i < updateLog.size(); ++i)
+                for (String path: touchedPaths(updateLog.get(i)))
+                    if (paths.contains(path))
+                        return true;
+            return false;
+        } finally {
+            paxosLock.unlock();
         }
     }
 
+    /**
+     * Whether two commits make the same change, whatever their commit ids.
+     */
+    private static boolean sameChange(Commit a, Commit b) {
+        return a.nanoTimestamp == b.nanoTimestamp && a.author.equals(b.author)
+            && a.message.equals(b.message) && a.removedFiles.equals(b.removedFiles)
+            && a.changedFileHashes.equals(b.changedFileHashes)
+            && Commit.equalsChangedFiles(a.changedFiles, b.changedFiles);
+    }
+
+    private static Commit copyMetadata(Commit commit) {
+        Commit ret = new Commit();
+        ret.commitId = commit.commitId;
+        ret.nanoTimestamp = commit.nanoTimestamp;
+        ret.author = commit.author;
+        ret.message = commit.message;
+        ret.base = commit.base;
+        ret.removedFiles.addAll(commit.removedFiles);
+        return ret;
+    }
+
+    /**
+     * Send file contents to all other servers, completing once a majority of
+     * servers, this one included, store them.
+     */
+    private CompletableFuture<Void> replicateBlobs(HashMap<String, byte[]> contents) {
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        final int needed = serverList.size() / 2;
+        final int others = serverList.size() - 1;
+        if (contents.isEmpty() || needed == 0) {
+            result.complete(null);
+            return result;
+        }
+        final AtomicInteger acks = new AtomicInteger(0), failures = new AtomicInteger(0);
+        for (int i = 0; i < serverList.size(); ++i) {
+            if (i == serverId)
+                continue;
+            net.request(serverList.get(i), "PutBlobs", contents, blobTimeout)
+                .whenComplete(new BiConsumer<Message, Throwable>() {
+                    public void accept(Message reply, Throwable failure) {
+                        if (reply != null && Boolean.TRUE.equals(reply.content)) {
+                            if (acks.incrementAndGet() == needed)
+                                result.complete(null);
+                        } else if (failures.incrementAndGet() == others - needed + 1) {
+                            result.completeExceptionally(new IOException("File contents not stored by a majority"));
+                        }
+                    }
+                });
+        }
+        return result;
+    }
+
     private Random rand = new Random();
     public String randomTitle() {
         StringBuilder sb = new StringBuilder();
@@ -290,249 +1082,1180 @@ public class LchServer {
         return sb.toString();
     }
 
-    private class CommitHandler implements Runnable {
-        public void run() {
-outerloop:
-            while (!closing) {
-                Message msg = net.receiveMessage("CommitRequest", 2 * NetIO.numNanosPerSecond);
-                if (msg == null)
-                    continue;
-                if (!(msg.content instanceof CommitRequest)) {
-                    System.err.println("Discarded a malformed commit request");
-                    continue;
-                }
-                CommitRequest req = (CommitRequest) msg.content;
-
-                System.out.println("Received commit request: " + req.toString());
-
-                int proposalNumber = selectProposeNumber();
-                PaxosMessage prepare = new PaxosMessage();
-                prepare.type = PaxosMessage.Type.Prepare;
-                prepare.proposalNumber = proposalNumber;
-                prepare.responseTitle = randomTitle();
-                for (String host: serverList)
-                    net.sendMessage(host, "Paxos", prepare);
-                int promise = 0, rejectPrepare = 0;
-                Commit commit = null;
-                int highestCommit = -1;
-                while (promise * 2 <= serverList.size() && rejectPrepare * 2 < serverList.size()) {
-                    Message prepareReplyMessage = net.receiveMessage(prepare.responseTitle, 10 * NetIO.numNanosPerSecond);
-                    if (prepareReplyMessage == null) {
-                        CommitResponse reply = new CommitResponse();
-                        reply.accepted = false;
-                        reply.comment = "Paxos prepare timed out";
-                        net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, reply);
-                        System.err.println("Prepare timed out, received " + promise + " promises and "
-                                + rejectPrepare + " rejects so far");
-                        continue outerloop;
+    private class CommitHandler implements MessageHandler {
+        private final boolean forwarded;
+
+        /**
+         * forwarded is true for the handler of commit requests forwarded by
+         * other servers, which are never forwarded again.
+         */
+        public CommitHandler(boolean forwarded) {
+            this.forwarded = forwarded;
+        }
+
+        public void handle(final Message msg) {
+            if (!(msg.content instanceof CommitRequest)) {
+                System.err.println("Discarded a malformed commit request");
+                return;
+            }
+            final CommitRequest req = (CommitRequest) msg.content;
+
+            System.out.println("Received commit request: " + req.toString());
+
+            if (readReplica) {
+                relay(msg, req);
+                return;
+            }
+
+            /* Paxos only carries the hashes of the files, so their contents
+             * must be on a majority of servers before the commit is proposed.
+             * Requests are still admitted in the order they arrived. */
+            HashMap<String, byte[]> contents = new HashMap<String, byte[]>();
+            final CommitRequest stripped = withoutContents(req, contents);
+            if (contents.isEmpty() && intake.isDone()) {
+                admit(msg, stripped);
+                return;
+            }
+            final CompletableFuture<Void> replicated = replicateBlobs(contents);
+            intake = CompletableFuture.allOf(intake, replicated)
+                .handle(new BiFunction<Void, Throwable, Void>() {
+                    public Void apply(Void v, Throwable failure) {
+                        return null;
                     }
-                    if (!(prepareReplyMessage.content instanceof PaxosMessage))
-                        continue;
-                    PaxosMessage respond = (PaxosMessage) prepareReplyMessage.content;
-                    if (respond.type == PaxosMessage.Type.Promise) {
-                        ++promise;
-                        if (respond.proposalNumber > highestCommit) {
-                            highestCommit = respond.proposalNumber;
-                            commit = respond.commit;
+                })
+                .thenRunAsync(new Runnable() {
+                    public void run() {
+                        if (replicated.isCompletedExceptionally())
+                            respond(msg, req, false, "Could not replicate the file contents");
+                        else
+                            admit(msg, stripped);
+                    }
+                }, commitExecutor);
+        }
+
+        /**
+         * Hand a commit request a read replica received, file contents
+         * included, to a voting server and pass on its answer. It is not
+         * tried elsewhere if that server does not answer, as it may still
+         * decide the commit.
+         */
+        private void relay(final Message msg, final CommitRequest req) {
+            final String voter = net.failureDetector().aliveFirst(serverList).get(0);
+            net.request(voter, "ForwardedCommit", req, net.timeout(voter, "ForwardedCommit", forwardTimeout))
+                .whenComplete(new BiConsumer<Message, Throwable>() {
+                    public void accept(Message reply, Throwable failure) {
+                        if (reply != null)
+                            net.reply(msg, req.responseTitle, reply.content);
+                        else
+                            respond(msg, req, false, "Server " + voter + " did not answer");
+                    }
+                });
+        }
+
+        /**
+         * Batch the commit, or forward it to the Multi-Paxos leader.
+         */
+        private void admit(final Message msg, CommitRequest request) {
+            final CommitRequest req = rebase(request);
+            if (req == null) {
+                staleRejected.incrementAndGet();
+                System.out.println("commit rejcted due to out of date repo");
+                respond(msg, request, false, "Please sync");
+                return;
+            }
+            if (req.proposedCommit.commitId < nextSlot()) {
+                respond(msg, req, null);
+                return;
+            }
+            final int leader = leaderId();
+            /* Take over at once from a leader that stopped sending heartbeats */
+            if (!multiPaxos || forwarded || leader == serverId || !isAlive(leader)) {
+                batcher.add(new CommitBatcher.Pending(msg, req));
+                return;
+            }
+            /* Do not hold the commit thread while the leader works on it */
+            net.request(serverList.get(leader), "ForwardedCommit", req,
+                    net.timeout(serverList.get(leader), "ForwardedCommit", forwardTimeout))
+                .whenComplete(new BiConsumer<Message, Throwable>() {
+                    public void accept(Message reply, Throwable failure) {
+                        if (reply != null) {
+                            net.reply(msg, req.responseTitle, reply.content);
+                            return;
                         }
-                    } else if (respond.type == PaxosMessage.Type.RejectPrepare)
-                        ++rejectPrepare;
+                        System.err.println("Leader " + leader + " did not answer, taking over");
+                        try {
+                            commitExecutor.execute(new Runnable() {
+                                public void run() {
+                                    batcher.add(new CommitBatcher.Pending(msg, req));
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {
+                        }
+                    }
+                });
+        }
+    }
+
+    private class BatchProposer implements CommitBatcher.Proposer {
+        public void propose(List<CommitBatcher.Pending> batch, List<CommitBatcher.Pending> conflicting) {
+            for (CommitBatcher.Pending p: batch)
+                p.proposed = true;
+            if (multiPaxos)
+                lead(batch, conflicting);
+            else
+                LchServer.this.propose(batch, conflicting);
+        }
+
+        /**
+         * The commits of the batch from the request's slot on are the ones
+         * after its base, so this is rebase against the batch.
+         */
+        public CommitBatcher.Pending rebase(CommitBatcher.Pending request, List<CommitBatcher.Pending> batch) {
+            Commit commit = request.req.proposedCommit;
+            if (commit.commitId != request.req.baseCommit + 1)
+                return null;
+            int first = batch.get(0).req.proposedCommit.commitId;
+            Set<String> paths = touchedPaths(commit);
+            for (int i = commit.commitId - first; i < batch.size(); ++i)
+                for (String path: touchedPaths(batch.get(i).req.proposedCommit))
+                    if (paths.contains(path))
+                        return null;
+            return new CommitBatcher.Pending(request, moveOnto(request.req, first + batch.size() - 1));
+        }
+
+        public boolean idle() {
+            return window.availablePermits() == paxosWindow;
+        }
+    }
+
+    private void readmitAll(List<CommitBatcher.Pending> requests) {
+        for (CommitBatcher.Pending p: requests)
+            readmit(p);
+    }
+
+    /**
+     * Decide a batch of commits with a full round of Paxos of its own, within
+     * the window, then readmit the requests that conflicted with it.
+     */
+    private void propose(final List<CommitBatcher.Pending> batch, final List<CommitBatcher.Pending> conflicting) {
+        runInWindow(new Runnable() {
+            public void run() {
+                try {
+                    proposeBatch(batch);
+                } finally {
+                    readmitAll(conflicting);
                 }
-                if (promise * 2 <= serverList.size()) {
-                    CommitResponse reply = new CommitResponse();
-                    reply.accepted = false;
-                    reply.comment = "Paxos prepare message was rejected";
-                    net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, reply);
+            }
+        });
+    }
+
+    /**
+     * Run the rounds for a batch, retrying lost ones, and answer its requests.
+     */
+    private void proposeBatch(List<CommitBatcher.Pending> batch) {
+        int slot = batch.get(0).req.proposedCommit.commitId;
+        String failure = null;
+        long giveUp = System.nanoTime() + acceptTimeout;
+        for (int attempt = 0; ; ++attempt) {
+            /* Once the slot is decided the outcome is known, see below */
+            if (attempt > 0 && !backOff(attempt, slot)) {
+                failure = null;
+                break;
+            }
+            int proposalNumber = selectProposeNumber();
+            roundsStarted.incrementAndGet();
+            Promises promises = prepare(proposalNumber, slot);
+            failure = promises.failure;
+            /* prepare may have caught up past these slots */
+            if (failure == null && nextSlot() <= slot) {
+                /* Values already accepted in these slots must be kept, and
+                 * the batch ends before a commit that one of them touches */
+                List<Commit> commits = new ArrayList<Commit>();
+                Set<String> ownPaths = new HashSet<String>(), keptPaths = new HashSet<String>();
+                for (CommitBatcher.Pending p: batch) {
+                    Commit commit = promises.accepted.get(p.req.proposedCommit.commitId);
+                    if (commit == null || commit.equals(p.req.proposedCommit)) {
+                        commit = p.req.proposedCommit;
+                        if (!Collections.disjoint(keptPaths, touchedPaths(commit)))
+                            break;
+                        ownPaths.addAll(touchedPaths(commit));
+                    } else {
+                        if (!Collections.disjoint(ownPaths, touchedPaths(commit)))
+                            break;
+                        keptPaths.addAll(touchedPaths(commit));
+                    }
+                    commits.add(commit);
+                }
+                failure = accept(proposalNumber, commits);
+            }
+            if (failure == null)
+                break;
+            /* A rejection means a higher proposal was promised */
+            boolean lost = highestProposalNumber > proposalNumber
+                || failure.equals(prepareRejected) || failure.equals(acceptRejected);
+            /* Timeouts follow round-trip estimates, which back off, so a
+             * round that was merely slow is worth another try too */
+            if (!lost && !failure.equals(prepareTimedOut) && !failure.equals(roundTimedOut))
+                break;
+            int winner = highestProposalNumber % serverList.size();
+            if (lost)
+                roundsLost.incrementAndGet();
+            if (lost && redirect && winner != serverId && nextSlot() <= slot
+                    && !forwarded(batch)) {
+                for (CommitBatcher.Pending p: batch)
+                    redirect(p, winner, failure);
+                return;
+            }
+            if (System.nanoTime() > giveUp)
+                break;
+        }
+        /* Once its first slot went to another value the whole batch lost */
+        boolean batchLost = lostSlot(batch.get(0).req);
+        for (CommitBatcher.Pending p: batch) {
+            if (batchLost || lostSlot(p.req)
+                    || (failure == null && p.req.proposedCommit.commitId >= nextSlot()))
+                readmit(p);
+            else
+                respond(p.msg, p.req, failure);
+        }
+    }
+
+    private static final String prepareTimedOut = "Paxos prepare timed out",
+            roundTimedOut = "Paxos round timed out",
+            prepareRejected = "Paxos prepare message was rejected",
+            acceptRejected = "Paxos accept request was rejected";
+
+    /**
+     * Wait before the given attempt to propose in a slot again. Returns
+     * false if the slot got decided in the meantime, so there is no point.
+     */
+    private boolean backOff(int attempt, int slot) {
+        long limit = Math.min(backoffCap, backoffBase << Math.min(attempt - 1, 20));
+        long wait = (long) (limit * ThreadLocalRandom.current().nextDouble());
+        logPaxos("Lost a round for slot " + slot + ", retrying in " + wait / 1000 + "us");
+        paxosLock.lock();
+        try {
+            while (wait > 0 && updateLog.size() <= slot)
+                wait = paxosCondition.awaitNanos(wait);
+            return updateLog.size() <= slot;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            paxosLock.unlock();
+        }
+    }
+
+    /**
+     * Whether some of the commit requests were forwarded or redirected to
+     * this server, and so must not be handed on again.
+     */
+    private static boolean forwarded(List<CommitBatcher.Pending> batch) {
+        for (CommitBatcher.Pending p: batch)
+            if (p.msg.title.equals("ForwardedCommit"))
+                return true;
+        return false;
+    }
+
+    /**
+     * Hand a commit request that lost a round to the server winning it and
+     * pass on its answer.
+     */
+    private void redirect(final CommitBatcher.Pending p, int winner, final String failure) {
+        redirected.incrementAndGet();
+        logPaxos("Redirecting commit " + p.req.proposedCommit.commitId + " to server " + winner);
+        net.request(serverList.get(winner), "ForwardedCommit", p.req,
+                net.timeout(serverList.get(winner), "ForwardedCommit", forwardTimeout))
+            .whenComplete(new BiConsumer<Message, Throwable>() {
+                public void accept(Message reply, Throwable error) {
+                    if (reply != null)
+                        net.reply(p.msg, p.req.responseTitle, reply.content);
+                    else
+                        respond(p.msg, p.req, failure);
+                }
+            });
+    }
+
+    /**
+     * Run a proposal on a thread of its own once there is room in the window,
+     * waiting for room on the calling thread.
+     */
+    private void runInWindow(final Runnable proposal) {
+        window.acquireUninterruptibly();
+        try {
+            proposalExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        proposal.run();
+                    } finally {
+                        window.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            window.release();
+        }
+    }
+
+    /**
+     * Decide a batch of commits as the Multi-Paxos leader, with a single
+     * accept round once this server holds the leadership. The batch must
+     * start at the next slot the leader has not proposed in, so batches for
+     * consecutive slots can be in flight together; commits that do not fit
+     * are answered "Please sync".
+     */
+    private void lead(List<CommitBatcher.Pending> batch, final List<CommitBatcher.Pending> conflicting) {
+        final int ballot;
+        final List<CommitBatcher.Pending> fitting = new ArrayList<CommitBatcher.Pending>();
+        final List<Commit> commits = new ArrayList<Commit>();
+        leaderLock.lock();
+        try {
+            String failure = ensureLeadership();
+            if (failure != null) {
+                for (CommitBatcher.Pending p: batch)
+                    respond(p.msg, p.req, false, failure);
+                readmitAll(conflicting);
+                return;
+            }
+            leaderAssigned.headMap(nextSlot()).clear();
+            int slot = Math.max(nextLeaderSlot, nextSlot());
+            while (leaderProposed.remove(slot))
+                ++slot;
+            for (CommitBatcher.Pending p: batch) {
+                int next = slot + commits.size();
+                CommitRequest req = p.req;
+                /* Clients on the same head ask for slots this leader already
+                 * gave to commits that are not decided yet */
+                if (req.proposedCommit.commitId < next)
+                    req = rebaseOntoAssigned(req, next - 1);
+                if (req != null && req.proposedCommit.commitId == next && !leaderProposed.contains(next)) {
+                    fitting.add(req == p.req ? p : new CommitBatcher.Pending(p, req));
+                    commits.add(req.proposedCommit);
+                    leaderAssigned.put(next, req.proposedCommit);
+                } else {
+                    System.out.println("commit rejcted due to out of date repo");
+                    respond(p.msg, p.req, false, "Please sync");
+                }
+            }
+            nextLeaderSlot = slot + commits.size();
+            ballot = leaderBallot.get();
+        } finally {
+            leaderLock.unlock();
+        }
+        if (commits.isEmpty()) {
+            readmitAll(conflicting);
+            return;
+        }
+        runInWindow(new Runnable() {
+            public void run() {
+                String failure = accept(ballot, commits);
+                if (failure != null)
+                    leaderBallot.compareAndSet(ballot, -1);
+                for (CommitBatcher.Pending p: fitting)
+                    respond(p.msg, p.req, failure);
+                readmitAll(conflicting);
+            }
+        });
+    }
+
+    /**
+     * rebase against the commits this leader proposed in slots that are not
+     * decided yet as well as against the update log: a copy of req moved
+     * onto head, or null if it conflicts with a commit after its base or
+     * one of them is not known here. Called with leaderLock held.
+     */
+    private CommitRequest rebaseOntoAssigned(CommitRequest req, int head) {
+        Commit commit = req.proposedCommit;
+        if (req.baseCommit < 0 || commit.commitId != req.baseCommit + 1)
+            return null;
+        Set<String> paths = touchedPaths(commit);
+        paxosLock.lock();
+        try {
+            for (int i = req.baseCommit + 1; i <= head; ++i) {
+                Commit other = i < updateLog.size() ? updateLog.get(i) : leaderAssigned.get(i);
+                if (other == null)
+                    return null;
+                for (String path: touchedPaths(other))
+                    if (paths.contains(path))
+                        return null;
+            }
+        } finally {
+            paxosLock.unlock();
+        }
+        return moveOnto(req, head);
+    }
+
+    /**
+     * Run the prepare phase for all slots from the next one on, unless this
+     * server already holds the leadership. Values a previous leader got
+     * accepted but not decided are proposed again, and those slots are not
+     * given to new commits. Returns null on success, otherwise why the
+     * leadership could not be taken. Called with leaderLock held.
+     */
+    private String ensureLeadership() {
+        int current = leaderBallot.get();
+        if (current >= 0 && current >= highestProposalNumber)
+            return null;
+        leaderBallot.set(-1);
+        int ballot = selectProposeNumber();
+        Promises promises = prepare(ballot, nextSlot());
+        if (promises.failure != null)
+            return promises.failure;
+        /* prepare may have caught up with entries this server missed */
+        leaderProposed.clear();
+        leaderAssigned.clear();
+        nextLeaderSlot = nextSlot();
+        for (final Commit commit: promises.accepted.tailMap(nextLeaderSlot).values()) {
+            leaderProposed.add(commit.commitId);
+            leaderAssigned.put(commit.commitId, commit);
+            final int b = ballot;
+            runInWindow(new Runnable() {
+                public void run() {
+                    accept(b, Collections.singletonList(commit));
+                }
+            });
+        }
+        leaderBallot.set(ballot);
+        logPaxos("Leading with proposal number " + ballot);
+        return null;
+    }
+
+    private List<Integer> allServers() {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (int i = 0; i < serverList.size(); ++i)
+            ret.add(i);
+        return ret;
+    }
+
+    /**
+     * Whether the failure detector (see NetIO.startHeartbeats) has not
+     * given up on a server. This server is always alive.
+     */
+    private boolean isAlive(int server) {
+        return server == serverId || net.failureDetector().isAlive(serverList.get(server));
+    }
+
+    /**
+     * The servers that are alive, or all of them if fewer than quorum are.
+     */
+    private List<String> liveServers(int quorum) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < serverList.size(); ++i)
+            if (isAlive(i))
+                ret.add(serverList.get(i));
+        return ret.size() >= quorum ? ret : serverList;
+    }
+
+    /**
+     * The phi of every other server, see FailureDetector.
+     */
+    public String liveness() {
+        return net.failureDetector().describe();
+    }
+
+    /**
+     * Note that a server answered a Paxos message after latency nanoseconds.
+     */
+    private void answered(int server, long latency) {
+        net.rttEstimator().sample(serverList.get(server), "Paxos", latency);
+    }
+
+    /**
+     * Back off the round-trip estimates of the servers that have left Paxos
+     * messages unanswered, after waiting for them timed out.
+     */
+    private void timedOut() {
+        for (int i = 0; i < serverList.size(); ++i)
+            if (net.rttEstimator().waiting(serverList.get(i), "Paxos"))
+                net.rttEstimator().timedOut(serverList.get(i), "Paxos");
+    }
+
+    /**
+     * Index in serverList of the server that sent msg, -1 if unknown.
+     */
+    private int peerIndex(Message msg) {
+        Integer index = peerIndex.get(msg.replyAddress + ":" + msg.replyPort);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * The server in serverList that sent msg, or its address if it is none
+     * of them.
+     */
+    private String sender(Message msg) {
+        int index = peerIndex(msg);
+        return index >= 0 ? serverList.get(index) : msg.replyAddress + ":" + msg.replyPort;
+    }
+
+    /**
+     * Counters of the proposal rounds of this server, see backoffBase.
+     */
+    public String contentionStats() {
+        return "rounds: " + roundsStarted.get() + ", lost: " + roundsLost.get()
+            + ", redirected: " + redirected.get() + ", rebased: " + rebased.get()
+            + ", rejected as stale: " + staleRejected.get();
+    }
+
+    private int leaderId() {
+        return highestProposalNumber % serverList.size();
+    }
+
+    private int nextSlot() {
+        paxosLock.lock();
+        try {
+            return updateLog.size();
+        } finally {
+            paxosLock.unlock();
+        }
+    }
+
+    /**
+     * The outcome of a prepare phase: failure is null if a phase-1 quorum promised,
+     * and accepted holds, per slot, the value accepted there with the highest
+     * proposal number among them.
+     */
+    private static class Promises {
+        String failure;
+        TreeMap<Integer, Commit> accepted = new TreeMap<Integer, Commit>();
+    }
+
+    private Promises prepare(int proposalNumber, int slot) {
+        PaxosMessage prepare = new PaxosMessage();
+        prepare.type = PaxosMessage.Type.Prepare;
+        prepare.proposalNumber = proposalNumber;
+        prepare.slot = slot;
+        prepare.responseTitle = randomTitle();
+        long sentAt = System.nanoTime();
+        List<String> targets = liveServers(q1);
+        for (String target: targets)
+            net.rttEstimator().sent(target, "Paxos", sentAt);
+        net.broadcast(targets, "Paxos", prepare);
+        long deadline = sentAt + net.rttEstimator().timeout(targets, "Paxos", q1, prepareTimeout);
+        Promises result = new Promises();
+        Map<Integer, Integer> acceptedNumbers = new HashMap<Integer, Integer>();
+        /* A reply sent twice (see ConnectionPool) counts once */
+        Set<String> promised = new HashSet<String>(), rejectedBy = new HashSet<String>();
+        Message mostUpToDate = null;
+        int mostUpToDateSlot = -1;
+        while (promised.size() < q1 && rejectedBy.size() <= targets.size() - q1) {
+            Message prepareReplyMessage = net.receiveMessage(prepare.responseTitle,
+                    Math.max(1, deadline - System.nanoTime()));
+            if (prepareReplyMessage == null) {
+                System.err.println("Prepare timed out, received " + promised.size() + " promises and "
+                        + rejectedBy.size() + " rejects so far");
+                timedOut();
+                result.failure = prepareTimedOut;
+                return result;
+            }
+            if (!(prepareReplyMessage.content instanceof PaxosMessage))
+                continue;
+            PaxosMessage respond = (PaxosMessage) prepareReplyMessage.content;
+            int from = peerIndex(prepareReplyMessage);
+            if (from >= 0)
+                answered(from, System.nanoTime() - sentAt);
+            if (respond.type == PaxosMessage.Type.Promise) {
+                if (!promised.add(sender(prepareReplyMessage)))
                     continue;
+                for (int i = 0; respond.acceptedCommits != null && i < respond.acceptedCommits.size(); ++i) {
+                    Commit c = respond.acceptedCommits.get(i);
+                    Integer highest = acceptedNumbers.get(c.commitId);
+                    if (highest == null || respond.acceptedNumbers[i] > highest) {
+                        acceptedNumbers.put(c.commitId, respond.acceptedNumbers[i]);
+                        result.accepted.put(c.commitId, c);
+                    }
+                }
+                if (respond.slot > mostUpToDateSlot) {
+                    mostUpToDateSlot = respond.slot;
+                    mostUpToDate = prepareReplyMessage;
+                }
+            } else if (respond.type == PaxosMessage.Type.RejectPrepare) {
+                rejectedBy.add(sender(prepareReplyMessage));
+                synchronized (this) {
+                    highestProposalNumber = Math.max(highestProposalNumber, respond.proposalNumber);
                 }
+            }
+        }
+        if (promised.size() < q1) {
+            result.failure = prepareRejected;
+            return result;
+        }
+        /* Learn what this server missed before proposing after it */
+        if (mostUpToDateSlot > nextSlot())
+            catchUpFrom(mostUpToDate.replyAddress, mostUpToDate.replyPort);
+        return result;
+    }
 
-                PaxosMessage acceptRequest = new PaxosMessage();
-                acceptRequest.type = PaxosMessage.Type.AcceptRequest;
-                acceptRequest.proposalNumber = proposalNumber;
-                acceptRequest.responseTitle = randomTitle();
-                if (commit == null)
-                    acceptRequest.commit = req.proposedCommit;
-                else
-                    acceptRequest.commit = commit;
-                for (String host: serverList)
-                    net.sendMessage(host, "Paxos", acceptRequest);
+    private void catchUpFrom(String host, int port) {
+        UpdateLogRequest req = new UpdateLogRequest();
+        req.baseCommit = nextSlot() - 1;
+        Message ret = NetIO.awaitReply(net.request(host, port, "UpdateLog", req,
+                    net.timeout(host + ":" + port, "UpdateLog", updateLogTimeout)));
+        if (ret != null && ret.content instanceof Snapshot) {
+            installSnapshot((Snapshot) ret.content);
+            req.baseCommit = nextSlot() - 1;
+            ret = NetIO.awaitReply(net.request(host, port, "UpdateLog", req,
+                        net.timeout(host + ":" + port, "UpdateLog", updateLogTimeout)));
+        }
+        if (ret == null || !(ret.content instanceof ArrayList))
+            return;
+        @SuppressWarnings("unchecked")
+        List<Commit> commits = (List<Commit>) ret.content;
+        paxosLock.lock();
+        try {
+            if (commits.size() > 0 && commits.get(0).commitId == updateLog.size()) {
+                for (Commit c: commits)
+                    updateLog.merge(c);
+                applyDecided();
+                logDecided();
+                paxosCondition.signalAll();
+            }
+        } finally {
+            paxosLock.unlock();
+        }
+    }
 
-                paxosLock.lock();
-                try {
-                    long timeout = 30 * NetIO.numNanosPerSecond;
+    /**
+     * Fetch, on a request thread, the decided entries this server missed
+     * from the server at host:port, until it has all those it received a
+     * decided notice for.
+     */
+    private void fetchDecided(final String host, final int port) {
+        if (!fetching.compareAndSet(false, true))
+            return;
+        try {
+            requestExecutor.execute(new Runnable() {
+                public void run() {
+                    boolean progress;
                     try {
-                        while (timeout > 0 && lastPaxosDecision < proposalNumber)
-                            timeout = paxosCondition.awaitNanos(timeout);
-                    } catch (InterruptedException e) {
+                        int before;
+                        do {
+                            before = nextSlot();
+                            catchUpFrom(host, port);
+                            progress = nextSlot() > before;
+                        } while (progress && nextSlot() <= highestDecidedSlot);
+                    } finally {
+                        fetching.set(false);
                     }
-                    if (updateLog.size() > req.proposedCommit.commitId
-                            && req.proposedCommit.commitId >= 0
-                            && updateLog.get(req.proposedCommit.commitId).equals(req.proposedCommit)) {
-                        CommitResponse reply = new CommitResponse();
-                        reply.accepted = true;
-                        reply.comment = "";
-                        net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, reply);
-                        System.out.println("commit accepted");
+                    /* A notice may have come in while the last fetch finished */
+                    if (progress && nextSlot() <= highestDecidedSlot && !closing)
+                        fetchDecided(host, port);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fetching.set(false);
+        }
+    }
+
+    /**
+     * Run the accept phase for commits, which are for consecutive slots, and
+     * wait until the slots are decided and applied. Returns null once they
+     * are, whichever values won, otherwise why they were not.
+     */
+    private String accept(int proposalNumber, List<Commit> commits) {
+        PaxosMessage acceptRequest = new PaxosMessage();
+        acceptRequest.type = PaxosMessage.Type.AcceptRequest;
+        acceptRequest.proposalNumber = proposalNumber;
+        acceptRequest.slot = commits.get(0).commitId;
+        acceptRequest.responseTitle = randomTitle();
+        if (commits.size() == 1)
+            acceptRequest.commit = commits.get(0);
+        else
+            acceptRequest.batch = new ArrayList<Commit>(commits);
+        long round = round(proposalNumber, acceptRequest.slot);
+        long sentAt = System.nanoTime();
+        /* Suspected servers, and in thrifty mode all but the q2 fastest, only
+         * get the request if the others do not decide in time */
+        RttEstimator rtt = net.rttEstimator();
+        List<Integer> order = thrifty ? rtt.fastestFirst(serverList, "Paxos", sentAt) : allServers();
+        List<Integer> alive = new ArrayList<Integer>(), suspected = new ArrayList<Integer>();
+        for (int server: order)
+            (isAlive(server) ? alive : suspected).add(server);
+        if (alive.size() < q2) {
+            alive.addAll(suspected);
+            suspected.clear();
+        }
+        int count = thrifty ? q2 : alive.size();
+        List<String> targets = new ArrayList<String>(), others = new ArrayList<String>();
+        long fallback = thriftyTimeout;
+        for (int i = 0; i < alive.size(); ++i) {
+            int server = alive.get(i);
+            if (i < count) {
+                targets.add(serverList.get(server));
+                fallback = Math.max(fallback, 3 * rtt.estimate(serverList.get(server), "Paxos", sentAt));
+            } else {
+                others.add(serverList.get(server));
+            }
+        }
+        for (int server: suspected)
+            others.add(serverList.get(server));
+        for (String target: targets)
+            rtt.sent(target, "Paxos", sentAt);
+        paxosLock.lock();
+        try {
+            proposedValues.put(round, acceptRequest.commits());
+            proposedAt.put(round, sentAt);
+        } finally {
+            paxosLock.unlock();
+        }
+        net.broadcast(targets, "Paxos", acceptRequest);
+
+        int last = commits.get(commits.size() - 1).commitId;
+        paxosLock.lock();
+        try {
+            long timeout = Math.min(acceptTimeout,
+                    fallback + rtt.timeout(serverList, "Paxos", q2, acceptTimeout));
+            try {
+                while (timeout > 0 && !paxosRejected.contains(round)
+                        && updateLog.size() <= last) {
+                    if (others.isEmpty()) {
+                        timeout = paxosCondition.awaitNanos(timeout);
                         continue;
-                    } else {
-                        CommitResponse reply = new CommitResponse();
-                        reply.accepted = false;
-                        if (timeout <= 0) {
-                            reply.comment = "Paxos round timed out";
-                            System.out.println("commit rejected due to paxos failure");
-                        } else {
-                            reply.comment = "Please sync";
-                            System.out.println("commit rejcted due to out of date repo");
-                        }
-                        net.sendMessage(msg.replyAddress, msg.replyPort, req.responseTitle, reply);
+                    }
+                    long waited = System.nanoTime() - sentAt;
+                    if (waited < fallback) {
+                        long wait = Math.min(timeout, fallback - waited);
+                        timeout -= wait - paxosCondition.awaitNanos(wait);
                         continue;
                     }
-                } finally {
-                    paxosLock.unlock();
+                    logPaxos("Accept request for slot " + acceptRequest.slot
+                            + " undecided after " + waited / 1000 + "us, sending to all");
+                    net.broadcast(others, "Paxos", acceptRequest);
+                    others = Collections.emptyList();
                 }
+            } catch (InterruptedException e) {
             }
+            proposedValues.remove(round);
+            proposedAt.remove(round);
+            if (paxosRejected.contains(round))
+                return acceptRejected;
+            if (timeout <= 0) {
+                timedOut();
+                return roundTimedOut;
+            }
+            return null;
+        } finally {
+            paxosLock.unlock();
         }
     }
 
+    /**
+     * Whether the slot of a commit has been decided for a different commit.
+     */
+    private boolean lostSlot(CommitRequest req) {
+        int commitId = req.proposedCommit.commitId;
+        paxosLock.lock();
+        try {
+            return commitId >= 0 && commitId < updateLog.size()
+                && !req.proposedCommit.equals(updateLog.get(commitId));
+        } finally {
+            paxosLock.unlock();
+        }
+    }
+
+    /**
+     * Tell the client whether its commit made it into the update log, given
+     * the outcome of accept.
+     */
+    private void respond(Message msg, CommitRequest req, String failure) {
+        boolean accepted;
+        paxosLock.lock();
+        try {
+            accepted = updateLog.size() > req.proposedCommit.commitId
+                && req.proposedCommit.commitId >= 0
+                && req.proposedCommit.equals(updateLog.get(req.proposedCommit.commitId));
+        } finally {
+            paxosLock.unlock();
+        }
+        if (accepted) {
+            System.out.println("commit accepted");
+            respond(msg, req, true, "");
+        } else if (failure != null) {
+            System.out.println("commit rejected due to paxos failure");
+            respond(msg, req, false, failure);
+        } else {
+            System.out.println("commit rejcted due to out of date repo");
+            respond(msg, req, false, "Please sync");
+        }
+    }
+
+    /**
+     * An acceptance is only sent once the commit is on disk here.
+     */
+    private void respond(final Message msg, final CommitRequest req, boolean accepted, String comment) {
+        final CommitResponse reply = new CommitResponse();
+        reply.accepted = accepted;
+        reply.comment = comment;
+        if (!accepted) {
+            net.reply(msg, req.responseTitle, reply);
+            return;
+        }
+        reply.commitId = req.proposedCommit.commitId;
+        whenDurable(new Runnable() {
+            public void run() {
+                net.reply(msg, req.responseTitle, reply);
+            }
+        });
+    }
+
+    /**
+     * Append the decided entries that directly follow the update log.
+     * Returns how many were appended. Called with paxosLock held.
+     */
+    private int applyDecided() {
+        decidedAhead.headMap(updateLog.size()).clear();
+        int applied = 0;
+        Commit next;
+        while ((next = decidedAhead.remove(updateLog.size())) != null) {
+            updateLog.add(effect(next));
+            ++applied;
+        }
+        if (applied > 0)
+            maybeSnapshot();
+        return applied;
+    }
+
+    /**
+     * What a decided commit, the next one in the log, takes effect as. A
+     * moved commit (see rebase) that a commit decided after its base
+     * touches, as an accepted value taken up without the batch it was
+     * checked with can be, becomes an empty commit in its slot, so it
+     * cannot undo that change; its client is not told it was accepted.
+     * Called with paxosLock held.
+     */
+    private Commit effect(Commit c) {
+        if (c.base < 0 || !touchedSince(c.base, c))
+            return c;
+        logPaxos("Dropping commit " + c.commitId + ", its paths changed after commit " + c.base);
+        Commit dropped = copyMetadata(c);
+        dropped.removedFiles.clear();
+        dropped.message = "Dropped, conflicted after commit " + c.base + ": " + c.message;
+        return dropped;
+    }
+
+    /**
+     * Key of the votes for one proposal number in one slot.
+     */
+    private static long round(int proposalNumber, int slot) {
+        return ((long) proposalNumber << 32) | (slot & 0xffffffffL);
+    }
+
+    /**
+     * Proposal numbers are never reused, even by commit requests handled
+     * concurrently on this server.
+     */
     private int selectProposeNumber() {
         int ret;
         synchronized (this) {
-            ret = highestProposalNumber / serverList.size() * serverList.size() + serverId;
-            if (ret <= highestProposalNumber)
+            int highest = Math.max(highestProposalNumber, lastProposalNumber);
+            ret = highest / serverList.size() * serverList.size() + serverId;
+            if (ret <= highest)
                 ret += serverList.size();
+            lastProposalNumber = ret;
         }
         return ret;
     }
 
-    private class AcceptorLearner implements Runnable {
+    /**
+     * Plays the acceptor and learner roles. In normal mode it is registered as
+     * the handler of Paxos messages, which run on a single thread and in the
+     * order they are received. In observer mode (used while catching up) run()
+     * pulls Paxos messages itself until it has learned the result of one round,
+     * without voting. Read replicas only ever play the learner role.
+     */
+    private class AcceptorLearner implements MessageHandler, Runnable {
         boolean observerMode = false;
+        /* The Prepare messages promised, by the slot from which each covers
+         * all later slots. A promise is only made to a number higher than
+         * all before it, and it replaces them from its slot on, so numbers
+         * grow with the slot. Keeping them apart lets a classic proposer
+         * with a window (lch.paxos.window) get its accept for one slot
+         * through after preparing the next one with a higher number. */
+        TreeMap<Integer, PaxosMessage> promises = new TreeMap<Integer, PaxosMessage>();
+        /* Per slot, the accept request last accepted there (which may be for
+         * several slots), until the slot has been applied */
+        TreeMap<Integer, PaxosMessage> accepted = new TreeMap<Integer, PaxosMessage>();
+        /* Per round, the servers that voted for or against it; a vote sent
+         * twice (see ConnectionPool) counts once */
+        Map<Long, Set<String>> acceptedVoters = new HashMap<Long, Set<String>>(),
+            rejectedVoters = new HashMap<Long, Set<String>>();
+        boolean finishOneRound = false;
 
         public AcceptorLearner(boolean ob) {
             observerMode = ob;
+            if (!observerMode)
+                restore();
         }
 
-        public void run() {
-            int lastPromise = -1;
-            int lastAcceptNumber = -1;
-            Commit lastAccept = null;
-            Map<Integer, Integer> acceptedCounter = new HashMap<Integer, Integer>(),
-                rejectedCounter = new HashMap<Integer, Integer>();
-            boolean finishOneRound = false;
+        /**
+         * Take up the promises and accepted values of this acceptor from
+         * before a restart (see AcceptorLog).
+         */
+        private void restore() {
+            if (acceptorLog == null)
+                return;
+            int highest = -1;
+            try {
+                for (PaxosMessage m: acceptorLog.recover()) {
+                    highest = Math.max(highest, m.proposalNumber);
+                    if (m.type == PaxosMessage.Type.Prepare) {
+                        promise(m);
+                        continue;
+                    }
+                    for (Commit c: m.commits())
+                        if (c.commitId >= nextSlot())
+                            accepted.put(c.commitId, m);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (LchServer.this) {
+                highestProposalNumber = Math.max(highestProposalNumber, highest);
+            }
+        }
+
+        /**
+         * Note a promise made to prepare, forgetting those of slots that
+         * have been applied.
+         */
+        private void promise(PaxosMessage prepare) {
+            promises.tailMap(prepare.slot).clear();
+            promises.put(prepare.slot, prepare);
+            Integer applied = promises.floorKey(nextSlot());
+            if (applied != null)
+                promises.headMap(applied).clear();
+        }
 
+        /**
+         * The lowest proposal number that may be accepted in the slots up to
+         * last, -1 if nothing was promised for them.
+         */
+        private int promised(int last) {
+            Map.Entry<Integer, PaxosMessage> e = promises.floorEntry(last);
+            return e == null ? -1 : e.getValue().proposalNumber;
+        }
+
+        /**
+         * Append a Prepare just promised or an AcceptRequest just accepted to
+         * the acceptor log, rewriting the log once it is full.
+         */
+        private void persist(PaxosMessage m) {
+            if (acceptorLog == null)
+                return;
+            try {
+                acceptorLog.append(m);
+                if (acceptorLog.full())
+                    acceptorLog.rewrite(promises.values(),
+                            new LinkedHashSet<PaxosMessage>(accepted.values()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void run() {
             while (!closing && (!observerMode || !finishOneRound)) {
                 Message msg = net.receiveMessage("Paxos", 2 * NetIO.numNanosPerSecond);
-                if (msg == null)
-                    continue;
-                if (!(msg.content instanceof PaxosMessage)) {
-                    System.err.println("Discarded malformed paxos message");
-                    continue;
-                }
-                PaxosMessage paxosMessage = (PaxosMessage) msg.content;
-                if (paxosMessage.type == PaxosMessage.Type.Prepare) {
-                    logPaxos("Prepare received with proposal number " + paxosMessage.proposalNumber);
-                    if (!observerMode) {
-                        PaxosMessage reply = new PaxosMessage();
-                        if (paxosMessage.proposalNumber > highestProposalNumber) {
-                            reply.type = PaxosMessage.Type.Promise;
-                            reply.proposalNumber = lastAcceptNumber;
-                            reply.commit = lastAccept;
-                            lastPromise = paxosMessage.proposalNumber;
-                            logPaxos("Promise prepare");
-                        } else {
-                            reply.proposalNumber = paxosMessage.proposalNumber;
-                            reply.type = PaxosMessage.Type.RejectPrepare;
-                            logPaxos("Rejected prepare");
+                if (msg != null)
+                    handle(msg);
+            }
+        }
+
+        public void handle(Message msg) {
+            if (!(msg.content instanceof PaxosMessage)) {
+                System.err.println("Discarded malformed paxos message");
+                return;
+            }
+            PaxosMessage paxosMessage = (PaxosMessage) msg.content;
+            if (paxosMessage.type == PaxosMessage.Type.Prepare) {
+                logPaxos("Prepare received with proposal number " + paxosMessage.proposalNumber);
+                if (!observerMode && !readReplica) {
+                    final PaxosMessage reply = new PaxosMessage();
+                    reply.slot = nextSlot();
+                    if (paxosMessage.proposalNumber > highestProposalNumber) {
+                        reply.type = PaxosMessage.Type.Promise;
+                        reply.proposalNumber = paxosMessage.proposalNumber;
+                        Map<Integer, PaxosMessage> values = accepted.tailMap(paxosMessage.slot);
+                        reply.acceptedCommits = new ArrayList<Commit>();
+                        reply.acceptedNumbers = new int[values.size()];
+                        for (Map.Entry<Integer, PaxosMessage> e: values.entrySet()) {
+                            PaxosMessage value = e.getValue();
+                            reply.acceptedNumbers[reply.acceptedCommits.size()] = value.proposalNumber;
+                            reply.acceptedCommits.add(value.commits().get(e.getKey() - value.slot));
                         }
-                        net.sendMessage(msg.replyAddress, msg.replyPort, paxosMessage.responseTitle, reply);
+                        promise(paxosMessage);
+                        persist(paxosMessage);
+                        logPaxos("Promise prepare");
+                    } else {
+                        reply.proposalNumber = highestProposalNumber;
+                        reply.type = PaxosMessage.Type.RejectPrepare;
+                        logPaxos("Rejected prepare");
                     }
-                } else if (paxosMessage.type == PaxosMessage.Type.AcceptRequest) {
-                    logPaxos("Accept request received with proposal number " + paxosMessage.proposalNumber
-                            + ", " + paxosMessage.commit.toString());
-                    if (!observerMode) {
-                        PaxosMessage reply = new PaxosMessage();
-                        reply.proposalNumber = paxosMessage.proposalNumber;
-                        if (paxosMessage.proposalNumber >= lastPromise) {
-                            reply.type = PaxosMessage.Type.Accepted;
+                    /* A promise only counts once it survives a restart */
+                    final Message request = msg;
+                    final String title = paxosMessage.responseTitle;
+                    Runnable send = new Runnable() {
+                        public void run() {
+                            net.reply(request, title, reply);
+                        }
+                    };
+                    if (reply.type == PaxosMessage.Type.Promise)
+                        whenDurable(send);
+                    else
+                        send.run();
+                }
+            } else if (paxosMessage.type == PaxosMessage.Type.AcceptRequest) {
+                logPaxos("Accept request received with proposal number " + paxosMessage.proposalNumber
+                        + " for " + paxosMessage.commits().size() + " slots from " + paxosMessage.slot);
+                if (!observerMode && !readReplica) {
+                    final PaxosMessage reply = new PaxosMessage();
+                    reply.proposalNumber = paxosMessage.proposalNumber;
+                    reply.slot = paxosMessage.slot;
+                    int last = paxosMessage.slot + paxosMessage.commits().size() - 1;
+                    if (paxosMessage.proposalNumber >= promised(last)) {
+                        reply.type = PaxosMessage.Type.Accepted;
+                        if (!distinguishedLearner) {
                             reply.commit = paxosMessage.commit;
-                            lastAcceptNumber = paxosMessage.proposalNumber;
-                            lastAccept = paxosMessage.commit;
-                            logPaxos("Accepted accept request");
-                        } else {
-                            reply.type = PaxosMessage.Type.RejectAcceptRequest;
-                            logPaxos("Rejected accept request");
+                            reply.batch = paxosMessage.batch;
                         }
-                        net.sendMessage(msg.replyAddress, msg.replyPort, paxosMessage.responseTitle, reply);
-                        for (String s: serverList)
-                            net.sendMessage(s, "Paxos", reply);
+                        for (Commit c: paxosMessage.commits())
+                            accepted.put(c.commitId, paxosMessage);
+                        persist(paxosMessage);
+                        logPaxos("Accepted accept request");
+                    } else {
+                        reply.type = PaxosMessage.Type.RejectAcceptRequest;
+                        logPaxos("Rejected accept request");
                     }
-                } else if (paxosMessage.type == PaxosMessage.Type.Accepted) {
-                    logPaxos("One accept vote for proposal " + paxosMessage.proposalNumber);
-                    if (!acceptedCounter.containsKey(paxosMessage.proposalNumber))
-                        acceptedCounter.put(paxosMessage.proposalNumber, 0);
-                    acceptedCounter.put(paxosMessage.proposalNumber,
-                            acceptedCounter.get(paxosMessage.proposalNumber) + 1);
-                    if (acceptedCounter.get(paxosMessage.proposalNumber) * 2 >
-                            serverList.size() && !paxosLearned.contains(paxosMessage.proposalNumber)) {
-                        finishOneRound = true;
-                        paxosLock.lock();
-                        logPaxos("Learning proposal " + paxosMessage.proposalNumber);
-                        paxosLearned.add(paxosMessage.proposalNumber);
-                        try {
-                            if ((!observerMode && updateLog.size() == paxosMessage.commit.commitId)
-                                    || (observerMode && updateLog.get(updateLog.size() - 1).commitId < paxosMessage.commit.commitId)) {
-                                updateLog.add(paxosMessage.commit);
-                                saveState();
-                                logPaxos("Written to update log");
+                    final Message request = msg;
+                    final String title = paxosMessage.responseTitle;
+                    Runnable send = new Runnable() {
+                        public void run() {
+                            if (distinguishedLearner) {
+                                net.sendMessage(request.replyAddress, request.replyPort, "Paxos", reply);
                             } else {
-                                logPaxos("Not written to update log");
+                                net.reply(request, title, reply);
+                                net.broadcast(allLearners(), "Paxos", reply);
+                            }
+                        }
+                    };
+                    if (reply.type == PaxosMessage.Type.Accepted)
+                        whenDurable(send);
+                    else
+                        send.run();
+                }
+            } else if (paxosMessage.type == PaxosMessage.Type.Accepted) {
+                logPaxos("One accept vote for proposal " + paxosMessage.proposalNumber
+                        + " in slot " + paxosMessage.slot);
+                long round = round(paxosMessage.proposalNumber, paxosMessage.slot);
+                int votes = vote(acceptedVoters, round, msg);
+                paxosLock.lock();
+                try {
+                    Long sentAt = proposedAt.get(round);
+                    int from = peerIndex(msg);
+                    if (sentAt != null && from >= 0)
+                        answered(from, System.nanoTime() - sentAt);
+                    if (votes >= q2 && !paxosLearned.contains(round)) {
+                        List<Commit> commits = paxosMessage.commits();
+                        /* Votes sent only to the proposer carry no values */
+                        boolean notify = commits.isEmpty();
+                        if (notify)
+                            commits = proposedValues.get(round);
+                        if (commits != null) {
+                            learn(round, paxosMessage, commits);
+                            if (notify) {
+                                PaxosMessage decided = new PaxosMessage();
+                                decided.type = PaxosMessage.Type.Decided;
+                                decided.proposalNumber = paxosMessage.proposalNumber;
+                                decided.slot = paxosMessage.slot;
+                                net.broadcast(allLearners(), "Paxos", decided);
                             }
-                            lastAcceptNumber = -1;
-                            lastAccept = null;
-                            lastPaxosDecision = Math.max(lastPaxosDecision, paxosMessage.proposalNumber);
-                            paxosCondition.signalAll();
-                        } finally {
-                            paxosLock.unlock();
                         }
                     }
-                } else if (paxosMessage.type == PaxosMessage.Type.RejectAcceptRequest) {
-                    logPaxos("One reject vote for proposal " + paxosMessage.proposalNumber);
-                    if (!rejectedCounter.containsKey(paxosMessage.proposalNumber))
-                        rejectedCounter.put(paxosMessage.proposalNumber, 0);
-                    rejectedCounter.put(paxosMessage.proposalNumber,
-                            rejectedCounter.get(paxosMessage.proposalNumber) + 1);
-                    if (rejectedCounter.get(paxosMessage.proposalNumber) * 2 >
-                            serverList.size()) {
-                        paxosLock.lock();
-                        try {
-                            lastPaxosDecision = Math.max(lastPaxosDecision, paxosMessage.proposalNumber);
-                            paxosCondition.signalAll();
-                        } finally {
-                            paxosLock.unlock();
+                } finally {
+                    paxosLock.unlock();
+                }
+            } else if (paxosMessage.type == PaxosMessage.Type.Decided) {
+                logPaxos("Proposal " + paxosMessage.proposalNumber + " decided in slot "
+                        + paxosMessage.slot);
+                long round = round(paxosMessage.proposalNumber, paxosMessage.slot);
+                PaxosMessage value = accepted.get(paxosMessage.slot);
+                paxosLock.lock();
+                try {
+                    if (!paxosLearned.contains(round)) {
+                        if (value != null && value.proposalNumber == paxosMessage.proposalNumber
+                                && value.slot == paxosMessage.slot) {
+                            learn(round, paxosMessage, value.commits());
+                        } else {
+                            finishOneRound = true;
+                            highestDecidedSlot = Math.max(highestDecidedSlot, paxosMessage.slot);
+                            if (!observerMode)
+                                fetchDecided(msg.replyAddress, msg.replyPort);
                         }
                     }
+                } finally {
+                    paxosLock.unlock();
+                }
+            } else if (paxosMessage.type == PaxosMessage.Type.RejectAcceptRequest) {
+                logPaxos("One reject vote for proposal " + paxosMessage.proposalNumber
+                        + " in slot " + paxosMessage.slot);
+                long round = round(paxosMessage.proposalNumber, paxosMessage.slot);
+                int votes = vote(rejectedVoters, round, msg);
+                if (votes > serverList.size() - q2) {
+                    paxosLock.lock();
+                    try {
+                        paxosRejected.add(round);
+                        paxosCondition.signalAll();
+                    } finally {
+                        paxosLock.unlock();
+                    }
                 }
+            }
 
-                synchronized (this) {
-                    highestProposalNumber = Math.max(highestProposalNumber, paxosMessage.proposalNumber);
-                }
+            synchronized (LchServer.this) {
+                highestProposalNumber = Math.max(highestProposalNumber, paxosMessage.proposalNumber);
             }
         }
-    }
 
-    private static class PaxosMessage implements Serializable {
-        private static final long serialVersionUID = -2255362036241877525L;
+        /**
+         * Record the vote in msg for a round, returns the number of servers
+         * that cast such a vote in it.
+         */
+        private int vote(Map<Long, Set<String>> voters, long round, Message msg) {
+            Set<String> servers = voters.get(round);
+            if (servers == null) {
+                servers = new HashSet<String>();
+                voters.put(round, servers);
+            }
+            servers.add(sender(msg));
+            return servers.size();
+        }
 
-        private static enum Type {
-            Prepare,
-            Promise,
-            RejectPrepare,
-            AcceptRequest,
-            Accepted,
-            RejectAcceptRequest
+        /**
+         * Apply the values decided in a round. Called with paxosLock held.
+         */
+        private void learn(long round, PaxosMessage decision, List<Commit> commits) {
+            finishOneRound = true;
+            logPaxos("Learning proposal " + decision.proposalNumber + " in slot " + decision.slot);
+            paxosLearned.add(round);
+            if (observerMode) {
+                for (Commit c: commits) {
+                    if (updateLog.lastCommitId() < c.commitId) {
+                        updateLog.add(effect(c));
+                        logDecided();
+                        logPaxos("Written to update log");
+                    }
+                }
+            } else {
+                for (Commit c: commits)
+                    if (c.commitId >= updateLog.size())
+                        decidedAhead.put(c.commitId, c);
+                int applied = applyDecided();
+                if (applied > 0) {
+                    logDecided();
+                    logPaxos("Written " + applied + " entries to update log");
+                } else {
+                    logPaxos("Not written to update log");
+                }
+            }
+            accepted.headMap(updateLog.size()).clear();
+            paxosCondition.signalAll();
         }
-        public Type type;
-        public int proposalNumber;
-        public Commit commit;
-        public String responseTitle;
     }
 }
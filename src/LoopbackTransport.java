@@ -0,0 +1,128 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * Passes messages between the NetIO instances of one JVM without sockets or
+ * serialization, so the protocol can be benchmarked and profiled on its own
+ * and large clusters can be simulated on one machine. Select it with
+ * -Dlch.transport=loopback.
+ *
+ * Instances are found by port only; the host part of an address is ignored.
+ * Receivers get a fresh Message but share its content with the sender, so
+ * neither side may modify the content after it has been sent.
+ *
+ * Every link (sending port, receiving port) can be given a one-way delay
+ * with setDelay; lch.loopback.delayMicros sets the default for all links.
+ * Without a delay the message is delivered on the sending thread. Messages on
+ * one link arrive in order as long as its delay does not change.
+ *
+ * This class is thread-safe.
+ */
+class LoopbackTransport implements Transport {
+    public static final long defaultDelay = Long.getLong("lch.loopback.delayMicros", 0) * 1000;
+
+    private static final ConcurrentMap<Integer, LoopbackTransport> endpoints
+        = new ConcurrentHashMap<Integer, LoopbackTransport>();
+    private static final ConcurrentMap<Long, Long> delays
+        = new ConcurrentHashMap<Long, Long>();
+    /* Single thread, so delayed messages with equal delays keep their order */
+    private static final ScheduledExecutorService delayer
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loopback-delayer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Set the one-way delay, in nanoseconds, of messages sent from the
+     * instance on fromPort to the one on toPort.
+     */
+    public static void setDelay(int fromPort, int toPort, long nanos) {
+        delays.put(link(fromPort, toPort), nanos);
+    }
+
+    /**
+     * Forget all delays set with setDelay.
+     */
+    public static void clearDelays() {
+        delays.clear();
+    }
+
+    private static long link(int fromPort, int toPort) {
+        return ((long) fromPort << 32) | (toPort & 0xffffffffL);
+    }
+
+    private final NetIO net;
+    private final int localPort;
+
+    public LoopbackTransport(NetIO net, int port) throws IOException {
+        if (port == 0)
+            throw new BindException("The loopback transport needs an explicit port");
+        this.net = net;
+        this.localPort = port;
+        if (endpoints.putIfAbsent(port, this) != null)
+            throw new BindException("Port " + port + " is already in use");
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public void send(String host, int port, Message msg) throws IOException {
+        LoopbackTransport target = endpoints.get(port);
+        if (target == null)
+            throw new ConnectException("Connection refused: " + host + ":" + port);
+        Message copy = new Message("127.0.0.1", msg.replyPort, msg.title, msg.content);
+        copy.requestId = msg.requestId;
+        copy.replyTo = msg.replyTo;
+
+        Long delay = delays.get(link(localPort, port));
+        long nanos = delay != null ? delay : defaultDelay;
+        if (nanos <= 0)
+            target.net.deliver(copy);
+        else
+            delayer.schedule(new Delivery(target, copy), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Delivery never blocks, so this sends to all peers before returning.
+     */
+    public List<CompletableFuture<Void>> sendAsync(List<InetSocketAddress> peers, Message msg) {
+        List<CompletableFuture<Void>> result = new ArrayList<CompletableFuture<Void>>();
+        for (InetSocketAddress peer: peers) {
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            try {
+                send(peer.getHostString(), peer.getPort(), msg);
+                future.complete(null);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+            result.add(future);
+        }
+        return result;
+    }
+
+    public void close() {
+        endpoints.remove(localPort, this);
+    }
+
+    private static class Delivery implements Runnable {
+        private final LoopbackTransport target;
+        private final Message msg;
+
+        public Delivery(LoopbackTransport target, Message msg) {
+            this.target = target;
+            this.msg = msg;
+        }
+
+        public void run() {
+            /* Messages to an instance that has been closed in the meantime are lost */
+            if (endpoints.get(target.localPort) == target)
+                target.net.deliver(msg);
+        }
+    }
+}
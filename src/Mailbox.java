@@ -0,0 +1,189 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The queue of received messages with one title, see NetIO.
+ *
+ * Producers (the threads decoding messages) never block each other: messages
+ * go into a lock-free queue and a semaphore counts how many can be taken, so
+ * receivers can wait with a timeout. The mailbox holds at most capacity
+ * messages; when it is full either the oldest queued message or the new one
+ * is dropped, depending on the drop policy. Messages nobody has taken within
+ * the TTL are expired by NetIO's sweeper.
+ *
+ * This class is thread-safe.
+ */
+class Mailbox {
+    static enum DropPolicy {
+        DropOldest,
+        DropNewest
+    }
+
+    /**
+     * A snapshot of the counters of one mailbox.
+     */
+    static class Stats {
+        public final long enqueued, dropped, expired;
+        public final int queued;
+
+        Stats(long enqueued, long dropped, long expired, int queued) {
+            this.enqueued = enqueued;
+            this.dropped = dropped;
+            this.expired = expired;
+            this.queued = queued;
+        }
+
+        public String toString() {
+            return "enqueued: " + enqueued + ", dropped: " + dropped
+                + ", expired: " + expired + ", queued: " + queued;
+        }
+    }
+
+    /**
+     * A handler registered with NetIO.registerHandler and the executor to run
+     * it on.
+     */
+    static class Subscriber {
+        final MessageHandler handler;
+        final Executor executor;
+
+        Subscriber(MessageHandler handler, Executor executor) {
+            this.handler = handler;
+            this.executor = executor;
+        }
+    }
+
+    private static class Entry {
+        final Message msg;
+        final long receivedAt;
+
+        Entry(Message msg, long receivedAt) {
+            this.msg = msg;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    /* Never more permits than entries in queue */
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicInteger size = new AtomicInteger(0);
+    /* Threads currently using this mailbox, or -1 once it has been retired */
+    private final AtomicInteger users = new AtomicInteger(0);
+    private final AtomicLong enqueued = new AtomicLong(0),
+            dropped = new AtomicLong(0),
+            expired = new AtomicLong(0);
+    private volatile long lastActivity = System.nanoTime();
+
+    volatile Subscriber subscriber = null;
+
+    public Mailbox(int capacity, DropPolicy dropPolicy) {
+        this.capacity = Math.max(1, capacity);
+        this.dropPolicy = dropPolicy;
+    }
+
+    /**
+     * Queue a message, dropping one if the mailbox is full.
+     */
+    public void offer(Message msg) {
+        long now = System.nanoTime();
+        lastActivity = now;
+        if (size.incrementAndGet() > capacity) {
+            if (dropPolicy == DropPolicy.DropNewest) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                return;
+            }
+            /* If every queued message is already claimed by a receiver there is
+             * nothing to drop; the mailbox is over capacity only briefly. */
+            if (available.tryAcquire()) {
+                queue.poll();
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+            }
+        }
+        queue.add(new Entry(msg, now));
+        enqueued.incrementAndGet();
+        available.release();
+    }
+
+    /**
+     * Take the oldest message, waiting up to timeout nanoseconds for one.
+     * Returns null if none arrived in time.
+     */
+    public Message poll(long timeout) throws InterruptedException {
+        if (!available.tryAcquire(timeout, TimeUnit.NANOSECONDS))
+            return null;
+        return take();
+    }
+
+    /**
+     * Take the oldest message if there is one, without waiting.
+     */
+    public Message poll() {
+        if (!available.tryAcquire())
+            return null;
+        return take();
+    }
+
+    private Message take() {
+        Entry e = queue.poll();
+        size.decrementAndGet();
+        return e.msg;
+    }
+
+    /**
+     * Drop the messages that have been queued for longer than ttl nanoseconds.
+     */
+    public void expire(long now, long ttl) {
+        while (true) {
+            Entry head = queue.peek();
+            if (head == null || now - head.receivedAt < ttl)
+                return;
+            if (!available.tryAcquire())
+                return;
+            queue.poll();
+            size.decrementAndGet();
+            expired.incrementAndGet();
+        }
+    }
+
+    /**
+     * Callers must hold a mailbox between acquire() and release() while they
+     * use it. Returns false if the mailbox has been retired, in which case
+     * the caller must look up a fresh one.
+     */
+    public boolean acquire() {
+        while (true) {
+            int u = users.get();
+            if (u < 0)
+                return false;
+            if (users.compareAndSet(u, u + 1))
+                return true;
+        }
+    }
+
+    public void release() {
+        lastActivity = System.nanoTime();
+        users.decrementAndGet();
+    }
+
+    /**
+     * Retire the mailbox if it is empty, nobody has used it for ttl
+     * nanoseconds and nobody is using it now. A retired mailbox can no longer
+     * be acquired and should be forgotten. A message may still have been
+     * queued just before retirement; the caller should poll() it out and
+     * deliver it elsewhere.
+     */
+    public boolean retireIfIdle(long now, long ttl) {
+        if (subscriber != null || size.get() != 0 || now - lastActivity < ttl)
+            return false;
+        return users.compareAndSet(0, -1);
+    }
+
+    public Stats stats() {
+        return new Stats(enqueued.get(), dropped.get(), expired.get(), Math.max(0, size.get()));
+    }
+}
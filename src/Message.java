@@ -7,6 +7,14 @@ public class Message implements Serializable {
     public String title;
     public Serializable content;
 
+    /**
+     * Correlation ids used by NetIO.request and NetIO.reply. requestId is set
+     * on a request that expects a reply, replyTo on the reply to it. Both are
+     * 0 for plain messages.
+     */
+    public long requestId;
+    public long replyTo;
+
     public Message(String replyAddress, int replyPort, String title,
             Serializable content) {
         this.replyAddress = replyAddress;
@@ -0,0 +1,7 @@
+/**
+ * Receives messages of one title pushed by NetIO, see
+ * NetIO.registerHandler.
+ */
+public interface MessageHandler {
+    void handle(Message msg);
+}
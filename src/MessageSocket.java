@@ -0,0 +1,105 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * Sends and receives messages over a socket. Every message is written as
+ * one frame: a 4-byte length followed by the encoded message, so that
+ * the receiving side can split the stream without understanding the
+ * payload (see NioServer).
+ *
+ * Messages are encoded with BinaryCodec unless the lch.codec system property
+ * is "java", in which case Java serialization is used. Either encoding is
+ * accepted when receiving.
+ */
+class MessageSocket {
+    public static final int maxFrameSize = 1 << 30;
+    public static final boolean useBinaryCodec =
+        !System.getProperty("lch.codec", "binary").equals("java");
+
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    public MessageSocket(Socket socket) throws IOException {
+        this.socket = socket;
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    public void sendMessage(Message message) throws IOException {
+        sendFrame(encode(message));
+    }
+
+    /**
+     * Send a message that has already been encoded with encode().
+     */
+    public void sendFrame(byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    public Message receiveMessage() throws ClassNotFoundException, IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxFrameSize)
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame, 0, length);
+    }
+
+    public static byte[] encode(Message message) throws IOException {
+        if (useBinaryCodec)
+            return BinaryCodec.encode(message);
+        return serialize(message);
+    }
+
+    public static Message decode(byte[] frame, int offset, int length)
+            throws ClassNotFoundException, IOException {
+        if (BinaryCodec.isBinary(frame, offset, length))
+            return BinaryCodec.decode(frame, offset, length);
+        Serializable msg = deserialize(frame, offset, length);
+        if (!(msg instanceof Message))
+            throw new StreamCorruptedException("Frame does not contain a message");
+        return (Message) msg;
+    }
+
+    public static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(object);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    public static Serializable deserialize(byte[] data, int offset, int length)
+            throws ClassNotFoundException, IOException {
+        ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(data, offset, length));
+        return (Serializable) ois.readObject();
+    }
+
+    /**
+     * Block until the peer closes the connection or the socket is closed
+     * locally. Only meaningful when the peer is not expected to send anything.
+     */
+    public void awaitClose() {
+        try {
+            while (in.read() != -1) {
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Every message is flushed when it is sent, so closing the socket is
+     * enough and also works when the peer has already gone away.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
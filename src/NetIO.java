@@ -1,5 +1,6 @@
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.net.*;
 
@@ -9,17 +10,105 @@ import java.net.*;
 public class NetIO {
     public static final long numNanosPerSecond = 1000000000L;
 
+    /**
+     * lch.transport selects how messages travel between NetIO instances:
+     * "socket" (the default) uses TCP, see SocketTransport; "loopback" passes
+     * them in memory between the instances in this JVM, see
+     * LoopbackTransport.
+     */
+    public static final String transportName = System.getProperty("lch.transport", "socket");
+
+    /**
+     * Every title has a mailbox holding at most mailboxCapacity messages
+     * (lch.mailbox.capacity). When it is full the oldest message is dropped,
+     * or the new one if lch.mailbox.dropPolicy is "newest". Messages nobody
+     * picks up within mailboxTtl (lch.mailbox.ttl, in seconds) are expired,
+     * and mailboxes that stay unused that long are forgotten.
+     */
+    public static final int mailboxCapacity = Integer.getInteger("lch.mailbox.capacity", 10000);
+    public static final Mailbox.DropPolicy mailboxDropPolicy =
+        System.getProperty("lch.mailbox.dropPolicy", "oldest").equals("newest")
+        ? Mailbox.DropPolicy.DropNewest : Mailbox.DropPolicy.DropOldest;
+    public static final long mailboxTtl = Long.getLong("lch.mailbox.ttl", 60) * numNanosPerSecond;
+
+    /**
+     * How often startHeartbeats sends heartbeats (lch.heartbeat.intervalMillis),
+     * which is also the interval the failure detector expects at first.
+     */
+    public static final long heartbeatInterval =
+        Long.getLong("lch.heartbeat.intervalMillis", 200) * numNanosPerSecond / 1000;
+
     /**
      * Set up a server on the given port.
      * If anything wrong happened, a RuntimeException will be thrown.
      */
     public NetIO(int port) {
         try {
-            serverSocket = new ServerSocket(port);
-            new Thread(new ServerThread()).start();
+            if (transportName.equals("loopback"))
+                transport = new LoopbackTransport(this, port);
+            else
+                transport = new SocketTransport(this, port);
+            localPort = transport.getLocalPort();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(numNanosPerSecond, mailboxTtl / 4);
+        sweeper.scheduleAtFixedRate(new Sweeper(), period, period, TimeUnit.NANOSECONDS);
+        registerHandler("Heartbeat", new HeartbeatHandler(), sweeper);
+    }
+
+    /**
+     * Send a heartbeat to every host in hostAndPorts other than self every
+     * heartbeatInterval, until close(). self is how the other hosts know this
+     * one; they feed the heartbeats into their failure detectors.
+     */
+    public void startHeartbeats(final String self, Collection<String> hostAndPorts) {
+        final List<String> peers = new ArrayList<String>(hostAndPorts);
+        peers.remove(self);
+        detector.watch(peers, System.nanoTime());
+        sweeper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                broadcast(peers, "Heartbeat", self);
+            }
+        }, 0, heartbeatInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Which hosts this one hears heartbeats from, see FailureDetector.
+     */
+    public FailureDetector failureDetector() {
+        return detector;
+    }
+
+    /**
+     * Ask every host in hostAndPorts at once whether it is up, for a process
+     * that has not been receiving heartbeats. Returns the hosts that
+     * answered within timeout nanoseconds, in the order they answered.
+     */
+    public List<String> probe(Collection<String> hostAndPorts, long timeout) {
+        final List<String> answered = Collections.synchronizedList(new ArrayList<String>());
+        List<CompletableFuture<Message>> replies = new ArrayList<CompletableFuture<Message>>();
+        for (final String peer: hostAndPorts) {
+            replies.add(request(peer, "Heartbeat", null, timeout)
+                .whenComplete((reply, e) -> {
+                    if (reply != null) {
+                        answered.add(peer);
+                        detector.heartbeat(peer, System.nanoTime());
+                    }
+                }));
+        }
+        for (CompletableFuture<Message> reply: replies)
+            awaitReply(reply);
+        synchronized (answered) {
+            return new ArrayList<String>(answered);
+        }
     }
 
     /**
@@ -27,14 +116,12 @@ public class NetIO {
      */
     public void sendMessage(String host, int port, String title, Serializable message) {
         try {
-            MessageSocket socket = new MessageSocket(
-                    new Socket(host, port));
-            socket.sendMessage(new Message(null, serverSocket.getLocalPort(),
+            transport.send(host, port, new Message(null, localPort,
                         title, message));
-            socket.close();
         } catch (UnknownHostException e) {
            e.printStackTrace();
         } catch (ConnectException e) {
+        } catch (SocketTimeoutException e) {
         } catch (IOException e) {
            e.printStackTrace();
         }
@@ -49,6 +136,146 @@ public class NetIO {
         }
     }
 
+    /**
+     * Send the same message to every host in hostAndPorts (address:port)
+     * without waiting. Over sockets the message is encoded once and written
+     * to all hosts concurrently, so a slow or dead host does not hold up the
+     * others.
+     * Messages broadcast to the same host arrive in the order they were
+     * broadcast.
+     *
+     * Returns, for every host, a future that completes once the message has
+     * been written to that host, or fails if it could not be sent.
+     */
+    public Map<String, CompletableFuture<Void>> broadcast(Collection<String> hostAndPorts,
+            String title, Serializable message) {
+        Map<String, CompletableFuture<Void>> result
+            = new LinkedHashMap<String, CompletableFuture<Void>>();
+        List<String> valid = new ArrayList<String>();
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for (String hostAndPort: hostAndPorts) {
+            int pos = hostAndPort.indexOf(":");
+            if (pos == -1) {
+                CompletableFuture<Void> future = new CompletableFuture<Void>();
+                future.completeExceptionally(new UnknownHostException(hostAndPort));
+                result.put(hostAndPort, future);
+                continue;
+            }
+            String host = hostAndPort.substring(0, pos);
+            int port = Integer.parseInt(hostAndPort.substring(pos + 1));
+            valid.add(hostAndPort);
+            peers.add(InetSocketAddress.createUnresolved(host, port));
+        }
+        List<CompletableFuture<Void>> futures = transport.sendAsync(peers,
+                new Message(null, localPort, title, message));
+        for (int i = 0; i < valid.size(); ++i)
+            result.put(valid.get(i), futures.get(i));
+        return result;
+    }
+
+    /**
+     * Send a request to a given host and return a future for its reply. The
+     * receiver answers with reply(), which routes the answer back to this
+     * future by a numeric correlation id instead of a response title.
+     *
+     * The future fails if the request cannot be sent, or with a
+     * TimeoutException if no reply arrives within timeout nanoseconds. Either
+     * way nothing is left behind for a late reply. How long replies take
+     * goes into the round-trip estimate of the host, see timeout().
+     */
+    public CompletableFuture<Message> request(String host, int port, String title,
+            Serializable payload, long timeout) {
+        final long id = nextRequestId.getAndIncrement();
+        final String peer = host + ":" + port;
+        final long sentAt = System.nanoTime();
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        pendingRequests.put(id, future);
+        future.whenComplete((reply, e) -> {
+            pendingRequests.remove(id);
+            if (reply != null)
+                rtt.sample(peer, title, System.nanoTime() - sentAt);
+            else if (e instanceof TimeoutException)
+                rtt.timedOut(peer, title);
+        });
+
+        Message msg = new Message(null, localPort, title, payload);
+        msg.requestId = id;
+        try {
+            transport.send(host, port, msg);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.orTimeout(timeout, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    public CompletableFuture<Message> request(String hostAndPort, String title,
+            Serializable payload, long timeout) {
+        int pos = hostAndPort.indexOf(":");
+        if (pos == -1) {
+            CompletableFuture<Message> future = new CompletableFuture<Message>();
+            future.completeExceptionally(new UnknownHostException(hostAndPort));
+            return future;
+        }
+        String host = hostAndPort.substring(0, pos);
+        int port = Integer.parseInt(hostAndPort.substring(pos + 1));
+        return request(host, port, title, payload, timeout);
+    }
+
+    /**
+     * How long to wait for hostAndPort (address:port) to answer a request
+     * with the given title, from the round trips of earlier such requests,
+     * but at most cap nanoseconds. See RttEstimator.
+     */
+    public long timeout(String hostAndPort, String title, long cap) {
+        return rtt.timeout(hostAndPort, title, cap);
+    }
+
+    /**
+     * The round-trip estimates timeout() uses. Users that time answers
+     * themselves, such as replies to broadcasts, add their samples here.
+     */
+    public RttEstimator rttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * Wait for the reply to a request. Returns null if the request failed or
+     * timed out, like receiveMessage does.
+     */
+    public static Message awaitReply(CompletableFuture<Message> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Answer a received message. If it was sent with request(), the answer
+     * completes the requester's future; otherwise it is sent to the sender
+     * under responseTitle, to be picked up with receiveMessage.
+     */
+    public void reply(Message request, String responseTitle, Serializable response) {
+        if (request.requestId == 0) {
+            sendMessage(request.replyAddress, request.replyPort, responseTitle, response);
+            return;
+        }
+        Message msg = new Message(null, localPort, responseTitle, response);
+        msg.replyTo = request.requestId;
+        try {
+            transport.send(request.replyAddress, request.replyPort, msg);
+        } catch (ConnectException e) {
+        } catch (SocketTimeoutException e) {
+        } catch (IOException e) {
+           e.printStackTrace();
+        }
+    }
+
     /**
      * Wait for a message with the given title, or until time expires. If more than
      * one thread is waiting for the message with the same title, an arbitrary thread
@@ -60,137 +287,196 @@ public class NetIO {
      * timeout is in nanoseconds.
      */
     public Message receiveMessage(String title, long timeout) {
-        LockAndQueue lq;
-        synchronized(receivedMessages) {
-            if (!receivedMessages.containsKey(title))
-                receivedMessages.put(title, new LockAndQueue());
-            lq = receivedMessages.get(title);
-        }
-        lq.lock.lock();
+        Mailbox mailbox = acquireMailbox(title);
         try {
-            while (lq.queue.size() == 0) {
-                timeout = lq.condition.awaitNanos(timeout);
-                if (timeout <= 0L)
-                    return null;
-            }
-            return lq.queue.poll();
+            return mailbox.poll(timeout);
         } catch (InterruptedException e) {
             e.printStackTrace();
             return null;
         } finally {
-            lq.lock.unlock();
+            mailbox.release();
         }
     }
 
     /**
-     * Close the server.
+     * Deliver every message with the given title to handler, run on executor,
+     * instead of queueing it for receiveMessage. Messages that were already
+     * queued are handed over as well. Messages are submitted to the executor
+     * in the order they are received, so a single-threaded executor handles
+     * them one at a time and in order.
+     *
+     * Messages the executor rejects, e.g. because it has been shut down, are
+     * dropped.
      */
-    public void close() {
+    public void registerHandler(String title, MessageHandler handler, Executor executor) {
+        Mailbox mailbox = acquireMailbox(title);
         try {
-            serverSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            mailbox.subscriber = new Mailbox.Subscriber(handler, executor);
+            drainToSubscriber(mailbox);
+        } finally {
+            mailbox.release();
         }
     }
 
-    private class ServerThread implements Runnable {
-        public void run() {
-            try {
-                while (true) {
-                    new Thread(new HandleClientThread(serverSocket.accept())).start();
-                }
-            } catch (SocketException e) {
-                /* Socet is being closed */
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
-                }
-            }
-        }
+    /**
+     * Stop pushing messages with the given title; they are queued for
+     * receiveMessage again.
+     */
+    public void unregisterHandler(String title) {
+        Mailbox mailbox = acquireMailbox(title);
+        mailbox.subscriber = null;
+        mailbox.release();
     }
 
-    private class HandleClientThread implements Runnable {
-        private volatile Socket socket;
+    /**
+     * Counters of the mailboxes of all titles currently known.
+     */
+    public Map<String, Mailbox.Stats> mailboxStats() {
+        Map<String, Mailbox.Stats> ret = new TreeMap<String, Mailbox.Stats>();
+        for (Map.Entry<String, Mailbox> e: mailboxes.entrySet())
+            ret.put(e.getKey(), e.getValue().stats());
+        return ret;
+    }
 
-        public HandleClientThread(Socket socket) {
-            this.socket = socket;
-        }
+    /**
+     * Counters summed over the mailboxes that have been forgotten because
+     * they were idle for longer than mailboxTtl.
+     */
+    public Mailbox.Stats retiredMailboxStats() {
+        return new Mailbox.Stats(retiredEnqueued.get(), retiredDropped.get(),
+                retiredExpired.get(), 0);
+    }
 
-        public void run() {
-            try {
-                MessageSocket messageSocket = new MessageSocket(socket);
-                Message msg = (Message) messageSocket.receiveMessage();
-                msg.replyAddress = socket.getInetAddress().getHostAddress();
-
-                LockAndQueue lq;
-                synchronized(receivedMessages) {
-                    if (!receivedMessages.containsKey(msg.title))
-                        receivedMessages.put(msg.title, new LockAndQueue());
-                    lq = receivedMessages.get(msg.title);
-                }
+    /**
+     * Close the server.
+     */
+    public void close() {
+        transport.close();
+        sweeper.shutdown();
+        for (CompletableFuture<Message> future: pendingRequests.values())
+            future.completeExceptionally(new SocketException("NetIO is closed"));
+    }
 
-                lq.lock.lock();
-                try {
-                    lq.queue.add(msg);
-                    lq.condition.signal();
-                } finally {
-                    lq.lock.unlock();
-                }
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                System.err.println("Corrupted message received or IO exception");
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                }
+    /**
+     * Queue a received message for receiveMessage, or complete the request it
+     * replies to. Called by the transport on whichever thread received the
+     * message.
+     */
+    void deliver(Message msg) {
+        if (msg.replyTo != 0) {
+            /* Nobody is waiting any more if the request already timed out */
+            CompletableFuture<Message> future = pendingRequests.remove(msg.replyTo);
+            if (future != null)
+                future.complete(msg);
+            return;
+        }
+
+        Mailbox mailbox = acquireMailbox(msg.title);
+        try {
+            Mailbox.Subscriber subscriber = mailbox.subscriber;
+            if (subscriber != null) {
+                dispatch(subscriber, msg);
+            } else {
+                mailbox.offer(msg);
+                /* A handler may have been registered since we looked */
+                if (mailbox.subscriber != null)
+                    drainToSubscriber(mailbox);
             }
+        } finally {
+            mailbox.release();
         }
     }
 
-    private volatile ServerSocket serverSocket;
-    private final Map<String, LockAndQueue> receivedMessages
-        = new HashMap<String, LockAndQueue>();
-}
-
-class LockAndQueue {
-    final Lock lock = new ReentrantLock();
-    final Condition condition = lock.newCondition();
-    final Queue<Message> queue = new LinkedList<Message>();
-}
-
-class MessageSocket {
-    private Socket socket;
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private Mailbox acquireMailbox(String title) {
+        while (true) {
+            Mailbox mailbox = mailboxes.get(title);
+            if (mailbox == null) {
+                mailbox = new Mailbox(mailboxCapacity, mailboxDropPolicy);
+                Mailbox existing = mailboxes.putIfAbsent(title, mailbox);
+                if (existing != null)
+                    mailbox = existing;
+            }
+            if (mailbox.acquire())
+                return mailbox;
+            /* Retired by the sweeper, which is about to remove it */
+            mailboxes.remove(title, mailbox);
+        }
+    }
 
-    public MessageSocket(Socket socket) throws IOException {
-        this.socket = socket;
-        oos = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-        oos.flush();
-        ois = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    private static void drainToSubscriber(Mailbox mailbox) {
+        Mailbox.Subscriber subscriber = mailbox.subscriber;
+        if (subscriber == null)
+            return;
+        Message msg;
+        while ((msg = mailbox.poll()) != null)
+            dispatch(subscriber, msg);
     }
 
-    public void sendMessage(Serializable message) throws IOException {
-        oos.writeObject(message);
-        oos.flush();
+    private static void dispatch(Mailbox.Subscriber subscriber, final Message msg) {
+        final MessageHandler handler = subscriber.handler;
+        try {
+            subscriber.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        handler.handle(msg);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+        }
     }
 
-    public Serializable receiveMessage() throws ClassNotFoundException, IOException {
-        return (Serializable) ois.readObject();
+    /**
+     * Heartbeats carry the sender's host:port as it knows itself; probes
+     * carry nothing and are answered.
+     */
+    private class HeartbeatHandler implements MessageHandler {
+        public void handle(Message msg) {
+            if (msg.content instanceof String)
+                detector.heartbeat((String) msg.content, System.nanoTime());
+            if (msg.requestId != 0)
+                reply(msg, "Heartbeat", null);
+        }
     }
 
-    public void close() {
-        try {
-            oos.close();
-            ois.close();
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Expire messages nobody picked up within mailboxTtl and forget the
+     * mailboxes of titles nobody has used for that long, such as the
+     * response titles of requests that timed out.
+     */
+    private class Sweeper implements Runnable {
+        public void run() {
+            long now = System.nanoTime();
+            for (Map.Entry<String, Mailbox> e: mailboxes.entrySet()) {
+                Mailbox mailbox = e.getValue();
+                mailbox.expire(now, mailboxTtl);
+                if (!mailbox.retireIfIdle(now, mailboxTtl))
+                    continue;
+                mailboxes.remove(e.getKey(), mailbox);
+                Message msg;
+                while ((msg = mailbox.poll()) != null)
+                    deliver(msg);
+                Mailbox.Stats stats = mailbox.stats();
+                retiredEnqueued.addAndGet(stats.enqueued);
+                retiredDropped.addAndGet(stats.dropped);
+                retiredExpired.addAndGet(stats.expired);
+            }
         }
     }
+
+    private final Transport transport;
+    private final RttEstimator rtt = new RttEstimator();
+    private final FailureDetector detector = new FailureDetector(heartbeatInterval);
+    private final int localPort;
+    private final AtomicLong nextRequestId = new AtomicLong(new Random().nextInt(1 << 30) + 1L);
+    private final Map<Long, CompletableFuture<Message>> pendingRequests
+        = new ConcurrentHashMap<Long, CompletableFuture<Message>>();
+    private final ConcurrentMap<String, Mailbox> mailboxes
+        = new ConcurrentHashMap<String, Mailbox>();
+    private final AtomicLong retiredEnqueued = new AtomicLong(0),
+            retiredDropped = new AtomicLong(0),
+            retiredExpired = new AtomicLong(0);
+    private final ScheduledExecutorService sweeper;
 }
@@ -0,0 +1,229 @@
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Accepts inbound connections with a selector instead of a thread per
+ * connection. A fixed number of I/O threads, each owning a selector, split
+ * the incoming byte streams into frames (see MessageSocket), decode them and
+ * hand the messages to NetIO.
+ *
+ * This class is thread-safe.
+ */
+class NioServer {
+    private final NetIO net;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoLoop[] loops;
+    private volatile boolean closing = false;
+    private int nextLoop = 0;
+
+    public NioServer(NetIO net, int port, int numThreads) throws IOException {
+        this.net = net;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        loops = new IoLoop[Math.max(1, numThreads)];
+        for (int i = 0; i < loops.length; ++i) {
+            loops[i] = new IoLoop();
+            new Thread(loops[i]).start();
+        }
+        new Thread(new AcceptLoop()).start();
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void close() {
+        closing = true;
+        acceptSelector.wakeup();
+        for (IoLoop loop: loops)
+            loop.selector.wakeup();
+    }
+
+    /**
+     * Runs until the server is closed. Failing to accept or set up one
+     * connection (say for lack of file descriptors) only costs that
+     * connection; the loop pauses a little so that it does not spin while the
+     * cause lasts.
+     */
+    private class AcceptLoop implements Runnable {
+        public void run() {
+            try {
+                while (!closing) {
+                    try {
+                        acceptSelector.select();
+                        acceptSelector.selectedKeys().clear();
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null)
+                            setUp(channel);
+                    } catch (ClosedChannelException e) {
+                        return;
+                    } catch (IOException e) {
+                        if (closing)
+                            return;
+                        e.printStackTrace();
+                        pause();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+            } finally {
+                try {
+                    serverChannel.close();
+                    acceptSelector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private void setUp(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                }
+                return;
+            }
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        private final Queue<SocketChannel> pending = new LinkedList<SocketChannel>();
+
+        public IoLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        public void register(SocketChannel channel) {
+            synchronized (pending) {
+                pending.add(channel);
+            }
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!closing) {
+                    selector.select();
+                    synchronized (pending) {
+                        while (!pending.isEmpty()) {
+                            SocketChannel channel = pending.poll();
+                            channel.register(selector, SelectionKey.OP_READ,
+                                    new FrameReader(channel));
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        FrameReader reader = (FrameReader) key.attachment();
+                        if (!key.isValid() || !reader.read())
+                            closeChannel(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key: selector.keys())
+                    closeChannel(key);
+                synchronized (pending) {
+                    for (SocketChannel channel: pending) {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                    pending.clear();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private void closeChannel(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Per-connection framing state: first the 4-byte length, then the body.
+     */
+    private class FrameReader {
+        private final SocketChannel channel;
+        private final String replyAddress;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer body = null;
+
+        public FrameReader(SocketChannel channel) {
+            this.channel = channel;
+            this.replyAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Read whatever is available and deliver every complete frame.
+         * Returns false if the connection should be closed.
+         */
+        public boolean read() {
+            try {
+                while (true) {
+                    if (body == null) {
+                        if (channel.read(header) < 0)
+                            return false;
+                        if (header.hasRemaining())
+                            return true;
+                        header.flip();
+                        int length = header.getInt();
+                        header.clear();
+                        if (length < 0 || length > MessageSocket.maxFrameSize) {
+                            System.err.println("Corrupted message received or IO exception");
+                            return false;
+                        }
+                        body = ByteBuffer.allocate(length);
+                    }
+                    if (channel.read(body) < 0)
+                        return false;
+                    if (body.hasRemaining())
+                        return true;
+                    byte[] frame = body.array();
+                    body = null;
+                    Message msg = MessageSocket.decode(frame, 0, frame.length);
+                    msg.replyAddress = replyAddress;
+                    net.deliver(msg);
+                }
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+                return false;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.*;
+import java.util.*;
+
+class PaxosMessage implements Serializable {
+    private static final long serialVersionUID = -2255362036241877525L;
+
+    /**
+     * The ordinals are part of the binary wire format (see BinaryCodec), so
+     * new types must only be appended.
+     */
+    static enum Type {
+        Prepare,
+        Promise,
+        RejectPrepare,
+        AcceptRequest,
+        Accepted,
+        RejectAcceptRequest,
+        Decided
+    }
+    public Type type;
+    /**
+     * The proposal number a message is about, except that a RejectPrepare
+     * carries the highest proposal number its sender has seen, so the
+     * proposer learns which round beat it.
+     */
+    public int proposalNumber;
+    /**
+     * The log slot (commit id) an AcceptRequest, the votes on it and the
+     * Decided notice for it are for, and the first slot a Prepare is for. A
+     * Promise carries the next slot its sender has no decision for.
+     */
+    public int slot;
+    public Commit commit;
+    /**
+     * Instead of commit, the values of an AcceptRequest for several slots,
+     * and of the Accepted votes on it: the commits for slot, slot + 1, ...
+     */
+    public ArrayList<Commit> batch;
+    public String responseTitle;
+    /**
+     * In a Promise, the values its sender accepted in the slots the Prepare
+     * is for and has not seen applied yet, one per slot, and the proposal
+     * numbers they were accepted with.
+     */
+    public ArrayList<Commit> acceptedCommits;
+    public int[] acceptedNumbers;
+
+    /**
+     * The values an AcceptRequest or Accepted vote is for, in slot order.
+     */
+    public List<Commit> commits() {
+        if (batch != null)
+            return batch;
+        if (commit != null)
+            return Collections.singletonList(commit);
+        return Collections.emptyList();
+    }
+}
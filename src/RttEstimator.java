@@ -0,0 +1,175 @@
+import java.util.*;
+
+/**
+ * Round-trip time estimates per peer (host:port) and kind of request
+ * (title), from which NetIO and its users derive how long to wait for an
+ * answer instead of using fixed timeouts, and a proposer picks the acceptors
+ * likely to answer first (see LchServer). Kinds are kept apart as answering
+ * a commit takes much longer than answering a heartbeat.
+ *
+ * As in TCP, each peer has a smoothed round-trip time and a smoothed mean
+ * deviation, and the timeout is the smoothed time plus four deviations. Each
+ * timeout without an answer in between doubles it, up to six times. A
+ * timeout is never shorter than floor (lch.rtt.floorMillis) or longer than
+ * the cap the caller passes.
+ *
+ * A kind of request a peer was never timed on starts from the longest
+ * timeout of the kinds it was timed on, times seedFactor
+ * (lch.rtt.seedFactor), so that a client that only probed the servers with
+ * heartbeats does not wait the whole cap for its first commit. Peers not
+ * timed at all get lch.rtt.initialMillis if it is set, otherwise the cap.
+ *
+ * A message the caller noted as sent (see sent) that is still unanswered
+ * makes its peer count as at least as slow as it has been waiting, so a
+ * peer that went away drops to the back of fastestFirst by itself.
+ *
+ * This class is thread-safe.
+ */
+class RttEstimator {
+    public static final long floor = Long.getLong("lch.rtt.floorMillis", 20) * 1000000;
+    public static final long initial = Long.getLong("lch.rtt.initialMillis", 0) * 1000000;
+    public static final long seedFactor = Long.getLong("lch.rtt.seedFactor", 32);
+
+    private static class Estimate {
+        boolean sampled = false;
+        long smoothed, deviation;
+        int backoff = 0;
+        /* When the oldest unanswered message noted by sent was sent, 0 if none */
+        long waitingSince = 0;
+    }
+
+    /* Per peer, the estimates per title */
+    private final Map<String, Map<String, Estimate>> estimates = new HashMap<String, Map<String, Estimate>>();
+
+    private Estimate get(String peer, String title) {
+        Map<String, Estimate> titles = estimates.get(peer);
+        if (titles == null) {
+            titles = new HashMap<String, Estimate>();
+            estimates.put(peer, titles);
+        }
+        Estimate e = titles.get(title);
+        if (e == null) {
+            e = new Estimate();
+            titles.put(title, e);
+        }
+        return e;
+    }
+
+    /**
+     * Note that peer answered a message with the given title after rtt
+     * nanoseconds.
+     */
+    public synchronized void sample(String peer, String title, long rtt) {
+        Estimate e = get(peer, title);
+        if (!e.sampled) {
+            e.sampled = true;
+            e.smoothed = rtt;
+            e.deviation = rtt / 2;
+        } else {
+            e.deviation = (3 * e.deviation + Math.abs(e.smoothed - rtt)) / 4;
+            e.smoothed = (7 * e.smoothed + rtt) / 8;
+        }
+        e.backoff = 0;
+        e.waitingSince = 0;
+    }
+
+    /**
+     * Note that peer did not answer in time.
+     */
+    public synchronized void timedOut(String peer, String title) {
+        Estimate e = get(peer, title);
+        e.backoff = Math.min(e.backoff + 1, 6);
+    }
+
+    /**
+     * Note that a message with the given title expecting an answer was sent
+     * to peer at time now (System.nanoTime()).
+     */
+    public synchronized void sent(String peer, String title, long now) {
+        Estimate e = get(peer, title);
+        if (e.waitingSince == 0)
+            e.waitingSince = now;
+    }
+
+    /**
+     * Whether peer has left a message with the given title noted by sent
+     * unanswered.
+     */
+    public synchronized boolean waiting(String peer, String title) {
+        Map<String, Estimate> titles = estimates.get(peer);
+        Estimate e = titles == null ? null : titles.get(title);
+        return e != null && e.waitingSince != 0;
+    }
+
+    /**
+     * The smoothed round-trip time of peer for the given title, or how long
+     * it has been leaving a message unanswered if that is longer; 0 if it
+     * was never heard from.
+     */
+    public synchronized long estimate(String peer, String title, long now) {
+        Map<String, Estimate> titles = estimates.get(peer);
+        Estimate e = titles == null ? null : titles.get(title);
+        if (e == null)
+            return 0;
+        long estimate = e.sampled ? e.smoothed : 0;
+        if (e.waitingSince != 0)
+            estimate = Math.max(estimate, now - e.waitingSince);
+        return estimate;
+    }
+
+    /**
+     * The indices of peers, the ones expected to answer first first (see
+     * estimate). Peers never heard from yet come before the others, in list
+     * order, so that every peer gets measured.
+     */
+    public synchronized List<Integer> fastestFirst(final List<String> peers, final String title, final long now) {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < peers.size(); ++i)
+            order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(estimate(peers.get(a), title, now), estimate(peers.get(b), title, now));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * How long to wait for peer to answer a message with the given title, at
+     * most cap nanoseconds.
+     */
+    public synchronized long timeout(String peer, String title, long cap) {
+        Map<String, Estimate> titles = estimates.get(peer);
+        Estimate e = titles == null ? null : titles.get(title);
+        long t;
+        if (e != null && e.sampled) {
+            t = e.smoothed + 4 * e.deviation;
+        } else {
+            t = 0;
+            for (Estimate other: titles == null ? Collections.<Estimate>emptyList() : titles.values())
+                if (other.sampled)
+                    t = Math.max(t, seedFactor * (other.smoothed + 4 * other.deviation));
+            if (t == 0)
+                t = initial;
+            if (t == 0)
+                return cap;
+        }
+        if (e != null)
+            t <<= e.backoff;
+        return Math.max(floor, Math.min(t, cap));
+    }
+
+    /**
+     * How long to wait for answers from quorum of the peers: the quorum-th
+     * shortest of their timeouts, at most cap nanoseconds.
+     */
+    public synchronized long timeout(Collection<String> peers, String title, int quorum, long cap) {
+        List<Long> timeouts = new ArrayList<Long>();
+        for (String peer: peers)
+            timeouts.add(timeout(peer, title, cap));
+        if (timeouts.isEmpty())
+            return cap;
+        Collections.sort(timeouts);
+        return timeouts.get(Math.min(Math.max(quorum, 1), timeouts.size()) - 1);
+    }
+}
@@ -1,10 +1,27 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.sql.Timestamp;
 
 public class ServerTester {
+    /**
+     * Takes the number of servers, 9 by default, and optionally "pipeline",
+     * "contention" or "replicas" to run testPipeline, testPaxos or
+     * testReplicas instead of testThroughput. Run with
+     * -Dlch.transport=loopback to leave sockets out of the measurement (see
+     * LoopbackTransport).
+     */
     public static final void main(String[] args) {
-        //testPaxos();
-        testThroughput(9);
+        int n = 9;
+        if (args.length >= 1)
+            n = Integer.parseInt(args[0]);
+        if (args.length >= 2 && args[1].equals("pipeline"))
+            testPipeline(n);
+        else if (args.length >= 2 && args[1].equals("contention"))
+            testPaxos(n);
+        else if (args.length >= 2 && args[1].equals("replicas"))
+            testReplicas(n);
+        else
+            testThroughput(n);
     }
 
     public static void testThroughput(int n) {
@@ -22,13 +39,12 @@ public class ServerTester {
             int j = rand.nextInt(n);
             CommitRequest cr = new CommitRequest();
             cr.baseCommit = getVersion(serverList.get(j), client);
-            cr.responseTitle = randomTitle();
             cr.proposedCommit = new Commit();
             cr.proposedCommit.commitId = cr.baseCommit + 1;
             cr.proposedCommit.message = randomTitle();
 
-            client.sendMessage(serverList.get(j), "CommitRequest", cr);
-            CommitResponse res = (CommitResponse) client.receiveMessage(cr.responseTitle, 20 * NetIO.numNanosPerSecond).content;
+            CommitResponse res = (CommitResponse) NetIO.awaitReply(client.request(
+                        serverList.get(j), "CommitRequest", cr, 20 * NetIO.numNanosPerSecond)).content;
         }
         System.out.println("Time spent: " + (getTimestamp() - t0));
         for (int i = 0; i < n; ++i)
@@ -36,12 +52,107 @@ public class ServerTester {
         client.close();
     }
 
+    /**
+     * Sends 100 commits for consecutive slots to the Multi-Paxos leader
+     * without waiting for the answers, so up to lch.paxos.window batches of
+     * them (see lch.batch.size) are decided concurrently. Needs
+     * -Dlch.multiPaxos=true.
+     */
+    public static void testPipeline(int n) {
+        int basePort = 12345;
+        LchServer[] servers = new LchServer[n];
+        List<String> serverList = new ArrayList<String>();
+        for (int i = 0; i < n; ++i)
+            serverList.add("localhost:" + (basePort + i));
+        for (int i = 0; i < n; ++i)
+            servers[i] = new LchServer(basePort + i, i, serverList, false, null);
+
+        NetIO client = new NetIO(basePort + n);
+        long t0 = getTimestamp();
+        List<CompletableFuture<Message>> replies = new ArrayList<CompletableFuture<Message>>();
+        for (int i = 1; i <= 100; ++i) {
+            CommitRequest cr = new CommitRequest();
+            cr.baseCommit = i - 1;
+            cr.proposedCommit = new Commit();
+            cr.proposedCommit.commitId = i;
+            cr.proposedCommit.message = randomTitle();
+            replies.add(client.request(serverList.get(0), "CommitRequest", cr,
+                        60 * NetIO.numNanosPerSecond));
+        }
+        int accepted = 0;
+        for (CompletableFuture<Message> reply: replies) {
+            Message msg = NetIO.awaitReply(reply);
+            if (msg != null && ((CommitResponse) msg.content).accepted)
+                ++accepted;
+        }
+        System.out.println("Accepted " + accepted + " of 100, time spent: " + (getTimestamp() - t0));
+        System.out.println("Commit batches on the leader: " + servers[0].batchStats());
+        for (int i = 0; i < n; ++i)
+            servers[i].close();
+        client.close();
+    }
+
+    /**
+     * Runs n voting servers and two read replicas (see LchServer.learners)
+     * and sends 100 commits, every other one to a read replica, which must
+     * hand them to a voting server. Every server, read replicas included,
+     * must end up at the same version.
+     */
+    public static void testReplicas(int n) {
+        int basePort = 12345, numReplicas = 2;
+        LchServer[] servers = new LchServer[n + numReplicas];
+        List<String> serverList = new ArrayList<String>(), learnerList = new ArrayList<String>(),
+                all = new ArrayList<String>();
+        for (int i = 0; i < n + numReplicas; ++i)
+            all.add("localhost:" + (basePort + i));
+        serverList.addAll(all.subList(0, n));
+        learnerList.addAll(all.subList(n, n + numReplicas));
+        for (int i = 0; i < n + numReplicas; ++i)
+            servers[i] = new LchServer(basePort + i, i, serverList, learnerList, false, null);
+
+        NetIO client = new NetIO(basePort + n + numReplicas);
+        long t0 = getTimestamp();
+        int accepted = 0;
+        for (int i = 0; i < 100; ++i) {
+            String server = i % 2 == 0 ? learnerList.get(rand.nextInt(numReplicas))
+                : serverList.get(rand.nextInt(n));
+            CommitRequest cr = new CommitRequest();
+            cr.baseCommit = getVersion(server, client);
+            cr.proposedCommit = new Commit();
+            cr.proposedCommit.commitId = cr.baseCommit + 1;
+            cr.proposedCommit.message = randomTitle();
+            cr.proposedCommit.changedFiles.put("file" + i, cr.proposedCommit.message.getBytes());
+            Message reply = NetIO.awaitReply(client.request(
+                        server, "CommitRequest", cr, 20 * NetIO.numNanosPerSecond));
+            if (reply != null && ((CommitResponse) reply.content).accepted)
+                ++accepted;
+        }
+        System.out.println("Accepted " + accepted + " of 100, time spent: " + (getTimestamp() - t0));
+
+        NetIO[] clients = new NetIO[n + numReplicas];
+        for (int i = 0; i < clients.length; ++i)
+            clients[i] = client;
+        int v = checkVersions(all, clients);
+        if (v == -1)
+            System.out.println("Versions are inconsistent!");
+        else
+            System.out.println("Versions are consistent. Current version: " + v);
+        for (int i = 0; i < n + numReplicas; ++i)
+            servers[i].close();
+        client.close();
+    }
+
     public static long getTimestamp() {
         return new Timestamp(new Date().getTime()).getTime();
     }
 
-    public static void testPaxos() {
-        int n = 10;
+    /**
+     * Every server gets a commit for the same slot at the same time, ten
+     * times over. The commits all change the same file, so none can be
+     * rebased past another (see LchServer.rebase) and exactly one of them
+     * must win each time.
+     */
+    public static void testPaxos(int n) {
         int basePort = 12345;
         LchServer[] servers = new LchServer[n];
         NetIO[] clients = new NetIO[n];
@@ -60,24 +171,33 @@ public class ServerTester {
             for (int i = 0; i < n; ++i) {
                 cr[i] = new CommitRequest();
                 cr[i].baseCommit = getVersion(serverList.get(i), clients[i]);
-                cr[i].responseTitle = randomTitle();
                 cr[i].proposedCommit = new Commit();
                 cr[i].proposedCommit.commitId = cr[i].baseCommit + 1;
                 cr[i].proposedCommit.message = "" + i;
+                cr[i].proposedCommit.changedFiles.put("shared", ("" + i).getBytes());
             }
+            List<CompletableFuture<Message>> replies = new ArrayList<CompletableFuture<Message>>();
+            long t0 = getTimestamp();
             for (int i = 0; i < n; ++i)
-                clients[i].sendMessage(serverList.get(i), "CommitRequest", cr[i]);
+                replies.add(clients[i].request(serverList.get(i), "CommitRequest", cr[i],
+                            10 * NetIO.numNanosPerSecond));
             int accepted = 0, rejected = 0;
             for (int i = 0; i < n; ++i) {
-                CommitResponse msg = (CommitResponse)
-                    clients[i].receiveMessage(cr[i].responseTitle, 10 * NetIO.numNanosPerSecond).content;
+                Message reply = NetIO.awaitReply(replies.get(i));
+                if (reply == null) {
+                    System.out.println(i + " timed out");
+                    ++rejected;
+                    continue;
+                }
+                CommitResponse msg = (CommitResponse) reply.content;
                 if (msg.accepted) {
                     ++accepted;
                     System.out.println(i + " accepted");
                 } else
                     ++rejected;
             }
-            System.out.println("accepted: " + accepted + ", rejected: " + rejected);
+            System.out.println("accepted: " + accepted + ", rejected: " + rejected
+                    + ", time spent: " + (getTimestamp() - t0));
             if (accepted != 1) {
                 System.out.println("test failed!");
                 break;
@@ -89,6 +209,8 @@ public class ServerTester {
             System.out.println("Versions are inconsistent!");
         else
             System.out.println("Versions are consistent. Current version: " + v);
+        for (int i = 0; i < n; ++i)
+            System.out.println("Server " + i + " proposals: " + servers[i].contentionStats());
 
         for (int i = 0; i < n; ++i)
             clients[i].close();
@@ -99,10 +221,8 @@ public class ServerTester {
     public static int getVersion(String server, NetIO net) {
         SyncRequest syncRequest = new SyncRequest();
         syncRequest.baseCommit = 0;
-        syncRequest.responseTitle = randomTitle();
-        net.sendMessage(server, "SyncRequest", syncRequest);
-        SyncResponse msg = (SyncResponse)
-            net.receiveMessage(syncRequest.responseTitle, 10 * NetIO.numNanosPerSecond).content;
+        SyncResponse msg = (SyncResponse) NetIO.awaitReply(
+                net.request(server, "SyncRequest", syncRequest, 10 * NetIO.numNanosPerSecond)).content;
         if (msg.commits.size() == 0)
             return 0;
         return msg.commits.get(msg.commits.size() - 1).commitId;
@@ -0,0 +1,106 @@
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * The repository as of a commit: the hash of every file (see BlobStore) and
+ * the commit that last changed or removed each path. A server keeps the
+ * update log only after its latest snapshot (see LchServer), and ships the
+ * snapshot instead of the commits before it to servers and clients that are
+ * further behind.
+ *
+ * Knowing when each path last changed, the snapshot can stand in for all
+ * commits after any base commit up to its own: since(base) is what merging
+ * those commits would give.
+ */
+class Snapshot implements Serializable {
+    private static final long serialVersionUID = 5226315087217203719L;
+
+    /* The last commit applied */
+    public int commitId = 0;
+    public final HashMap<String, String> files = new HashMap<String, String>();
+    private final HashMap<String, Integer> changedAt = new HashMap<String, Integer>(),
+            removedAt = new HashMap<String, Integer>();
+
+    public Snapshot() {
+    }
+
+    public Snapshot(Snapshot s) {
+        commitId = s.commitId;
+        files.putAll(s.files);
+        changedAt.putAll(s.changedAt);
+        removedAt.putAll(s.removedAt);
+    }
+
+    /**
+     * Apply the next commit. Contents that commits carry themselves rather
+     * than by hash are stored in blobs.
+     */
+    public void apply(Commit c, BlobStore blobs) {
+        for (String path: c.removedFiles) {
+            files.remove(path);
+            changedAt.remove(path);
+            removedAt.put(path, c.commitId);
+        }
+        Map<String, String> hashes = new HashMap<String, String>(c.changedFileHashes);
+        for (Map.Entry<String, byte[]> e: c.changedFiles.entrySet())
+            hashes.put(e.getKey(), blobs.put(e.getValue()));
+        for (Map.Entry<String, String> e: hashes.entrySet()) {
+            files.put(e.getKey(), e.getValue());
+            changedAt.put(e.getKey(), c.commitId);
+            removedAt.remove(e.getKey());
+        }
+        commitId = c.commitId;
+    }
+
+    /**
+     * A single commit with the effect of all commits after base up to this
+     * snapshot, with the commit id of the snapshot.
+     */
+    public Commit since(int base) {
+        Commit ret = new Commit();
+        ret.commitId = commitId;
+        ret.message = "Commits " + (base + 1) + " to " + commitId;
+        for (Map.Entry<String, Integer> e: changedAt.entrySet())
+            if (e.getValue() > base)
+                ret.changedFileHashes.put(e.getKey(), files.get(e.getKey()));
+        for (Map.Entry<String, Integer> e: removedAt.entrySet())
+            if (e.getValue() > base)
+                ret.removedFiles.add(e.getKey());
+        return ret;
+    }
+
+    /**
+     * Write the snapshot to file, replacing what was there only once the
+     * new one is on disk.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            ObjectOutputStream oout = new ObjectOutputStream(new BufferedOutputStream(out));
+            oout.writeObject(this);
+            oout.flush();
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The snapshot saved in file, null if there is none.
+     */
+    public static Snapshot load(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (Snapshot) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+}
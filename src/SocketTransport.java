@@ -0,0 +1,152 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * Carries messages over TCP. Outbound messages go through a ConnectionPool.
+ * Inbound connections are served by a few selector threads (see NioServer)
+ * when the lch.nio system property is true, and by a thread per connection
+ * otherwise. lch.nio.threads sets the number of selector threads.
+ *
+ * This class is thread-safe.
+ */
+class SocketTransport implements Transport {
+    public static final boolean useNio = Boolean.getBoolean("lch.nio");
+    public static final int numNioThreads = Integer.getInteger("lch.nio.threads", 2);
+
+    public SocketTransport(NetIO net, int port) throws IOException {
+        this.net = net;
+        if (useNio) {
+            nioServer = new NioServer(net, port, numNioThreads);
+            localPort = nioServer.getLocalPort();
+        } else {
+            serverSocket = new ServerSocket(port);
+            localPort = serverSocket.getLocalPort();
+            new Thread(new ServerThread()).start();
+        }
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public void send(String host, int port, Message msg) throws IOException {
+        pool.send(host, port, msg);
+    }
+
+    /**
+     * The message is encoded once for all peers.
+     */
+    public List<CompletableFuture<Void>> sendAsync(List<InetSocketAddress> peers, Message msg) {
+        List<CompletableFuture<Void>> result = new ArrayList<CompletableFuture<Void>>();
+        byte[] frame;
+        try {
+            frame = MessageSocket.encode(msg);
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (int i = 0; i < peers.size(); ++i) {
+                CompletableFuture<Void> future = new CompletableFuture<Void>();
+                future.completeExceptionally(e);
+                result.add(future);
+            }
+            return result;
+        }
+        for (InetSocketAddress peer: peers)
+            result.add(pool.sendAsync(peer.getHostString(), peer.getPort(), frame, sendExecutor));
+        return result;
+    }
+
+    public void close() {
+        if (nioServer != null) {
+            nioServer.close();
+        } else {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        pool.close();
+        sendExecutor.shutdown();
+        synchronized (acceptedSockets) {
+            for (Socket socket: acceptedSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            acceptedSockets.clear();
+        }
+    }
+
+    private class ServerThread implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    Threads.start(new HandleClientThread(serverSocket.accept()));
+                }
+            } catch (SocketException e) {
+                /* Socet is being closed */
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private class HandleClientThread implements Runnable {
+        private volatile Socket socket;
+
+        public HandleClientThread(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * The peer keeps the connection open and sends any number of messages
+         * on it, so keep reading until it goes away.
+         */
+        public void run() {
+            synchronized (acceptedSockets) {
+                acceptedSockets.add(socket);
+            }
+            try {
+                MessageSocket messageSocket = new MessageSocket(socket);
+                String replyAddress = socket.getInetAddress().getHostAddress();
+                while (true) {
+                    Message msg = messageSocket.receiveMessage();
+                    msg.replyAddress = replyAddress;
+                    net.deliver(msg);
+                }
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            } catch (EOFException e) {
+                /* Peer closed the connection */
+            } catch (SocketException e) {
+                /* Connection reset or socket is being closed */
+            } catch (IOException e) {
+                System.err.println("Corrupted message received or IO exception");
+            } finally {
+                synchronized (acceptedSockets) {
+                    acceptedSockets.remove(socket);
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private final NetIO net;
+    private volatile ServerSocket serverSocket;
+    private volatile NioServer nioServer;
+    private final int localPort;
+    private final ConnectionPool pool = new ConnectionPool();
+    private final ExecutorService sendExecutor = Threads.newPerTaskExecutor();
+    private final Set<Socket> acceptedSockets = new HashSet<Socket>();
+}
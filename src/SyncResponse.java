@@ -5,4 +5,9 @@ public class SyncResponse implements Serializable {
     static final long serialVersionUID = -8546995590299378388L;
 
     public List<Commit> commits;
+    /**
+     * Why the server could not sync the client, null if it could. commits
+     * is then empty.
+     */
+    public String failure;
 }
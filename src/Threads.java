@@ -0,0 +1,81 @@
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Where NetIO and LchServer get the threads that handle connections and
+ * requests from.
+ *
+ * With -Dlch.virtualThreads=true on a JVM that has virtual threads (Java 21
+ * or later) these are virtual threads, so blocking on a socket or on a
+ * condition does not hold on to a platform thread and a server can keep
+ * thousands of connections and requests in flight. Otherwise, or on an older
+ * JVM, they are ordinary platform threads. The virtual thread API is looked
+ * up reflectively so that the code still builds on older JDKs.
+ */
+class Threads {
+    private static final ThreadFactory virtualFactory = lookupVirtualFactory();
+
+    public static final boolean useVirtualThreads =
+        Boolean.getBoolean("lch.virtualThreads") && virtualFactory != null;
+
+    static {
+        if (Boolean.getBoolean("lch.virtualThreads") && virtualFactory == null)
+            System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+    }
+
+    /**
+     * Factory for threads that mostly block: virtual threads if enabled,
+     * platform threads otherwise.
+     */
+    public static ThreadFactory factory() {
+        return useVirtualThreads ? virtualFactory : Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Start a daemon thread running r.
+     */
+    public static Thread startDaemon(Runnable r) {
+        Thread t = factory().newThread(r);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Start a thread running r.
+     */
+    public static Thread start(Runnable r) {
+        Thread t = factory().newThread(r);
+        t.start();
+        return t;
+    }
+
+    /**
+     * An executor that runs every task on a thread of its own. Only sensible
+     * with virtual threads; with platform threads idle threads are reused.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (useVirtualThreads) {
+            try {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, virtualFactory);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            /* Virtual threads are a preview feature on Java 19 and 20 */
+            return null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Carries messages between NetIO instances. NetIO keeps the mailboxes,
+ * handlers and pending requests; a transport only moves messages to the
+ * NetIO listening on a given port, and hands the messages it receives to
+ * NetIO.deliver with replyAddress filled in.
+ *
+ * Implementations must be thread-safe.
+ */
+interface Transport {
+    int getLocalPort();
+
+    /**
+     * Send a message, blocking until it has been handed to the network.
+     */
+    void send(String host, int port, Message msg) throws IOException;
+
+    /**
+     * Send the same message to several peers without waiting. Returns a
+     * future per peer, in the same order, that completes once the message has
+     * been handed to the network or fails if it could not be sent. Messages
+     * sent this way to one peer arrive in the order they were sent.
+     */
+    List<CompletableFuture<Void>> sendAsync(List<InetSocketAddress> peers, Message msg);
+
+    void close();
+}
@@ -0,0 +1,100 @@
+import java.util.*;
+
+/**
+ * The update log of a server in memory: the commits by commit id, except for
+ * those before first(), which were compacted into a snapshot (see Snapshot).
+ * Indexes are commit ids, and size() is the commit id after the last entry.
+ *
+ * This class is not thread-safe; LchServer guards it with paxosLock.
+ */
+class UpdateLog {
+    private int first;
+    private final ArrayList<Commit> entries = new ArrayList<Commit>();
+
+    /**
+     * An empty log whose first entry will be for commit id first.
+     */
+    public UpdateLog(int first) {
+        this.first = first;
+    }
+
+    public int first() {
+        return first;
+    }
+
+    public int size() {
+        return first + entries.size();
+    }
+
+    /**
+     * The entry for commit id i, null if it was compacted.
+     */
+    public Commit get(int i) {
+        if (i < first)
+            return null;
+        return entries.get(i - first);
+    }
+
+    /**
+     * The commit id of the last entry, or of the last compacted one if
+     * there is none after it.
+     */
+    public int lastCommitId() {
+        return entries.isEmpty() ? first - 1 : entries.get(entries.size() - 1).commitId;
+    }
+
+    public void add(Commit c) {
+        entries.add(c);
+    }
+
+    /**
+     * Put c in the place of the entry with its commit id, or before the
+     * first entry with a higher one. Entries are in commit id order, so the
+     * place is found by binary search. Commits that were compacted are
+     * ignored.
+     */
+    public void merge(Commit c) {
+        if (lastCommitId() < c.commitId) {
+            entries.add(c);
+            return;
+        }
+        if (c.commitId < first)
+            return;
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).commitId < c.commitId)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if (entries.get(lo).commitId == c.commitId)
+            entries.set(lo, c);
+        else
+            entries.add(lo, c);
+    }
+
+    public void removeLast() {
+        entries.remove(entries.size() - 1);
+    }
+
+    /**
+     * Drop the entries before commit id i.
+     */
+    public void truncateBefore(int i) {
+        int n = Math.min(Math.max(0, i - first), entries.size());
+        entries.subList(0, n).clear();
+        first += n;
+    }
+
+    /**
+     * The entries from commit id from on, at most max of them.
+     */
+    public ArrayList<Commit> range(int from, int max) {
+        from = Math.max(from, first);
+        int to = (int) Math.min(size(), (long) from + max);
+        if (from >= to)
+            return new ArrayList<Commit>();
+        return new ArrayList<Commit>(entries.subList(from - first, to - first));
+    }
+}
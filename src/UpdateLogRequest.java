@@ -0,0 +1,8 @@
+import java.io.*;
+
+class UpdateLogRequest implements Serializable {
+    static final long serialVersionUID = 8306525401762584161L;
+
+    public String responseTitle;
+    public int baseCommit;
+}